@@ -0,0 +1,64 @@
+/* forkTest.c
+ *    Test program for fork().
+ *
+ *    Parent and child each write every page of an array they share
+ *    copy-on-write after the fork, and must each see only their own values.
+ *    Prints "fork ok" on success.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+
+#define Size	1024	/* ints; spans several pages */
+
+int data[Size];
+
+/* returns 1 if data holds base, base+1, ... */
+int
+check(int base)
+{
+    int i;
+
+    for (i = 0; i < Size; i++)
+	if (data[i] != base + i)
+	    return 0;
+    return 1;
+}
+
+int
+main()
+{
+    int i, pid, status;
+
+    for (i = 0; i < Size; i++)
+	data[i] = i;
+
+    pid = fork();
+    if (pid == -1) {
+	printf("fork failed\n");
+	return 1;
+    }
+
+    if (pid == 0) {		/* child */
+	if (!check(0))
+	    return 2;		/* the parent's writes got through */
+	for (i = 0; i < Size; i++)
+	    data[i] = 2*Size + i;
+	return check(2*Size) ? 0 : 3;
+    }
+
+    for (i = 0; i < Size; i++)
+	data[i] = Size + i;
+
+    if (join(pid, &status) != 1 || status != 0) {
+	printf("child saw the wrong values, status %d\n", status);
+	return 1;
+    }
+    if (!check(Size)) {
+	printf("parent saw the wrong values\n");
+	return 1;
+    }
+
+    printf("fork ok\n");
+    return 0;
+}
@@ -0,0 +1,76 @@
+/* mmapTest.c
+ *    Test program for mmap().
+ *
+ *    Maps a three-page file, checks that mappings overlapping the program
+ *    or another mapping are refused and that read() fails on a mapped file,
+ *    then writes to the mapping and checks that closing the file writes the
+ *    change back. Prints "mmap ok" on success.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+
+#define PageSize	1024
+#define Length		(3*PageSize)
+#define MapAddress	((char *) 0x100000)	/* past the program and stack */
+
+char buf[Length];
+char *fn = "mmapTest.tmp";
+
+int
+fail(char *why)
+{
+    printf("%s\n", why);
+    unlink(fn);
+    return 1;
+}
+
+int
+main()
+{
+    int fd, fd2, i;
+    char *map = MapAddress;
+
+    for (i = 0; i < Length; i++)
+	buf[i] = 'a' + i % 26;
+
+    fd = creat(fn);
+    if (fd == -1) {
+	printf("creat failed\n");
+	return 1;
+    }
+    if (write(fd, buf, Length) != Length)
+	return fail("write failed");
+    if (mmap(fd, map) != Length)
+	return fail("mmap failed");
+
+    fd2 = open(fn);
+    if (fd2 == -1)
+	return fail("open failed");
+    if (mmap(fd2, (char *) 0) != -1)
+	return fail("mapping over the program was allowed");
+    if (mmap(fd2, map + PageSize) != -1)
+	return fail("overlapping mappings were allowed");
+    if (read(fd, buf, 1) != -1)
+	return fail("read of a mapped file was allowed");
+
+    /* read the first page and write the last; the middle one is untouched */
+    if (map[5] != 'a' + 5)
+	return fail("mapping holds the wrong data");
+    map[2*PageSize + 5] = 'X';
+
+    /* closing the file removes the mapping and writes the page back */
+    if (close(fd) != 0)
+	return fail("close failed");
+    if (read(fd2, buf, Length) != Length)
+	return fail("read back failed");
+    if (buf[2*PageSize + 5] != 'X')
+	return fail("write to the mapping was lost");
+    if (buf[5] != 'a' + 5 || buf[PageSize + 5] != 'a' + (PageSize + 5) % 26)
+	return fail("file was corrupted");
+
+    close(fd2);
+    unlink(fn);
+    printf("mmap ok\n");
+    return 0;
+}
@@ -25,6 +25,7 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFork		13
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -109,6 +110,19 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
+/**
+ * Create a child process running a copy of the current process. The child
+ * starts with the parent's registers, memory and open files, and resumes from
+ * the same call. Memory is shared until either process writes to it, so
+ * fork() is cheaper than exec() for programs that spawn copies of themselves.
+ * Files mapped with mmap() are not inherited: in the child, neither the
+ * mapping nor its file descriptor exists.
+ *
+ * fork() returns the child's process ID to the parent, which can be passed to
+ * join(), and 0 to the child. On error, returns -1.
+ */
+int fork();
+
 /* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
@@ -224,6 +238,8 @@ int unlink(char *name);
  * When the file descriptor is closed, all remaining dirty pages of the map
  * will be flushed to disk and the map will be removed.
  *
+ * A child created by fork() does not inherit the map or the file descriptor.
+ *
  * Returns the length of the file on success, or -1 if an error occurred.
  */
 int mmap(int fileDescriptor, char *address);
@@ -0,0 +1,145 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * The free frames of physical memory. Free frames are kept on a stack of
+ * <tt>int</tt>s, so taking or returning a frame takes constant time and
+ * allocates nothing, and each frame's position on the stack is recorded so
+ * that a particular frame can be taken just as quickly. A bitmap of the
+ * free frames lets runs of consecutive frames be found a word at a time.
+ */
+public class FrameAllocator {
+  /**
+   * Allocate a new allocator with every frame free.
+   *
+   * @param numFrames the number of frames of physical memory.
+   */
+  public FrameAllocator(int numFrames) {
+    Lib.assertTrue(numFrames > 0);
+
+    stack = new int[numFrames];
+    position = new int[numFrames];
+    freeMap = new long[(numFrames + wordBits - 1) / wordBits];
+
+    // push the highest frame first, so frames are handed out in order
+    for (int ppn=numFrames-1; ppn>=0; ppn--)
+      free(ppn);
+  }
+
+  /**
+   * Take a free frame.
+   *
+   * @return the ppn of the frame, or -1 if no frame is free.
+   */
+  public int allocate() {
+    if (numFree == 0)
+      return -1;
+
+    int ppn = stack[--numFree];
+    position[ppn] = -1;
+    freeMap[ppn / wordBits] &= ~(1L << (ppn % wordBits));
+    return ppn;
+  }
+
+  /**
+   * Take a run of consecutive free frames, if there is one.
+   *
+   * @param count the number of frames in the run.
+   * @return the ppn of the first frame of the run, or -1 if there is no
+   *         such run.
+   */
+  public int allocateRun(int count) {
+    Lib.assertTrue(count > 0);
+
+    int run = 0;
+    for (int ppn=0; ppn<stack.length; ppn++) {
+      // skip words with no free frame
+      if (ppn % wordBits == 0 && freeMap[ppn / wordBits] == 0) {
+        run = 0;
+        ppn += wordBits - 1;
+        continue;
+      }
+
+      if (!isFree(ppn))
+        run = 0;
+      else if (++run == count) {
+        int first = ppn - count + 1;
+        for (int i=first; i<=ppn; i++)
+          take(i);
+        return first;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Return a frame to the free pool.
+   *
+   * @param ppn the frame to free.
+   */
+  public void free(int ppn) {
+    Lib.assertTrue(!isFree(ppn));
+
+    position[ppn] = numFree;
+    stack[numFree++] = ppn;
+    freeMap[ppn / wordBits] |= 1L << (ppn % wordBits);
+  }
+
+  /**
+   * Return several frames to the free pool, such as every frame of a
+   * process that is exiting.
+   *
+   * @param ppns an array holding the frames to free.
+   * @param count the number of frames in the array to free.
+   */
+  public void free(int[] ppns, int count) {
+    for (int i=0; i<count; i++)
+      free(ppns[i]);
+  }
+
+  /**
+   * Test whether a frame is free.
+   */
+  public boolean isFree(int ppn) {
+    return (freeMap[ppn / wordBits] & (1L << (ppn % wordBits))) != 0;
+  }
+
+  /**
+   * Return the number of free frames.
+   */
+  public int size() {
+    return numFree;
+  }
+
+  /**
+   * Return <tt>true</tt> if no frame is free.
+   */
+  public boolean isEmpty() {
+    return numFree == 0;
+  }
+
+  /**
+   * Take a particular free frame, moving the frame on top of the stack
+   * into its slot.
+   */
+  private void take(int ppn) {
+    int i = position[ppn];
+    int last = stack[--numFree];
+
+    stack[i] = last;
+    position[last] = i;
+    position[ppn] = -1;
+    freeMap[ppn / wordBits] &= ~(1L << (ppn % wordBits));
+  }
+
+  /** Free frames; the top of the stack is <tt>stack[numFree-1]</tt>. */
+  private int[] stack;
+  /** Where each free frame sits on the stack, or -1 if it is in use. */
+  private int[] position;
+  /** Bit set means free. */
+  private long[] freeMap;
+  private int numFree = 0;
+
+  private static final int wordBits = 64;
+}
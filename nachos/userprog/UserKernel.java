@@ -4,8 +4,6 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
-import java.util.LinkedList;
-
 /**
  * A kernel that can support multiple user processes.
  */
@@ -33,8 +31,7 @@ public class UserKernel extends ThreadedKernel {
     processLock = new Lock();
 
     memoryLock = new Lock();	
-    for (int ppn=0; ppn<Machine.processor().getNumPhysPages(); ppn++)
-      freePages.add(new Integer(ppn));
+    freePages = new FrameAllocator(Machine.processor().getNumPhysPages());
   }
 
   /**
@@ -127,7 +124,7 @@ public class UserKernel extends ThreadedKernel {
   /** Guards access to the physical page free list. */
   public static Lock memoryLock;
   /** The physical page free list. */
-  public static LinkedList freePages = new LinkedList();
+  public static FrameAllocator freePages;
 
   // dummy variables to make javac smarter
   private static Coff dummy1 = null;
@@ -70,11 +70,32 @@ public class UserProcess {
     if (!load(name, args))
       return false;
 
+    startThread(name);
+
+    return true;
+  }
+
+  /**
+   * Fork a thread to run this process, whose address space has already been
+   * set up. Called with the process lock held.
+   *
+   * @param	name	the name to give the thread.
+   */
+  protected void startThread(String name) {
     UserKernel.numRunningProcesses++;
 
     new UThread(this).setName(name).fork();
+  }
 
-    return true;
+  /**
+   * Record the specified process as a child of this process, so that this
+   * process can join it. Called with the process lock held.
+   *
+   * @param	child	the new child process.
+   */
+  protected void addChild(UserProcess child) {
+    child.parentProcess = this;
+    childProcesses.add(new Integer(child.processID));
   }
 
   /**
@@ -151,32 +172,7 @@ public class UserProcess {
       int length) {
     Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-    byte[] memory = Machine.processor().getMemory();
-
-    int amount = 0;
-
-    while (length > 0) {
-      int vpn = Processor.pageFromAddress(vaddr);
-      int off = Processor.offsetFromAddress(vaddr);
-
-      int transfer = Math.min(length, pageSize-off);
-
-      int ppn = pinVirtualPage(vpn, false);
-      if (ppn == -1)
-        break;
-
-      System.arraycopy(memory, ppn*pageSize + off, data, offset,
-          transfer);
-
-      unpinVirtualPage(vpn);
-
-      vaddr += transfer;
-      offset += transfer;
-      amount += transfer;
-      length -= transfer;	    
-    }
-
-    return amount;
+    return transferVirtualMemory(vaddr, data, offset, length, false);
   }
 
   /**
@@ -210,6 +206,21 @@ public class UserProcess {
       int length) {
     Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
+    return transferVirtualMemory(vaddr, data, offset, length, true);
+  }
+
+  /**
+   * Copy between virtual memory and the specified array. Pins up to
+   * <tt>maxPinPages</tt> pages of the buffer at a time, copies each run of
+   * consecutive frames with a single <tt>arraycopy()</tt>, then unpins them
+   * together.
+   *
+   * @param	toMemory	<tt>true</tt> to copy from the array into
+   *				virtual memory.
+   * @return	the number of bytes successfully transferred.
+   */
+  private int transferVirtualMemory(int vaddr, byte[] data, int offset,
+      int length, boolean toMemory) {
     byte[] memory = Machine.processor().getMemory();
 
     int amount = 0;
@@ -218,25 +229,69 @@ public class UserProcess {
       int vpn = Processor.pageFromAddress(vaddr);
       int off = Processor.offsetFromAddress(vaddr);
 
-      int transfer = Math.min(length, pageSize-off);
-
-      int ppn = pinVirtualPage(vpn, true);
-      if (ppn == -1)
+      int count = Math.min(Lib.divRoundUp(off+length, pageSize), maxPinPages);
+      int pinned = pinVirtualRange(vpn, count, toMemory, pinnedPPNs);
+      if (pinned == 0)
         break;
 
-      System.arraycopy(data, offset, memory, ppn*pageSize + off,
-          transfer);
+      int transfer = Math.min(length, pinned*pageSize - off);
 
-      unpinVirtualPage(vpn);
+      for (int i=0, done=0; i<pinned; ) {
+        int j = i+1;
+        while (j < pinned && pinnedPPNs[j] == pinnedPPNs[j-1]+1)
+          j++;
+
+        int start = (i == 0 ? off : 0);
+        int paddr = pinnedPPNs[i]*pageSize + start;
+        int bytes = Math.min(transfer-done, (j-i)*pageSize - start);
+
+        if (toMemory)
+          System.arraycopy(data, offset+done, memory, paddr, bytes);
+        else
+          System.arraycopy(memory, paddr, data, offset+done, bytes);
+
+        done += bytes;
+        i = j;
+      }
+
+      unpinVirtualRange(vpn, pinned, pinnedPPNs);
 
       vaddr += transfer;
       offset += transfer;
       amount += transfer;
-      length -= transfer;	    
+      length -= transfer;
     }
 
     return amount;
   }
+
+  /**
+   * Pin consecutive pages of virtual memory, stopping at the first page
+   * that cannot be pinned.
+   *
+   * @param	vpn	the first page to pin.
+   * @param	count	the number of pages to pin.
+   * @param	isUserWrite	<tt>true</tt> if the pages will be written.
+   * @param	ppns	receives the frame holding each pinned page.
+   * @return	the number of pages pinned.
+   */
+  protected int pinVirtualRange(int vpn, int count, boolean isUserWrite,
+      int[] ppns) {
+    for (int i=0; i<count; i++) {
+      ppns[i] = pinVirtualPage(vpn+i, isUserWrite);
+      if (ppns[i] == -1)
+        return i;
+    }
+    return count;
+  }
+
+  /**
+   * Unpin pages pinned by <tt>pinVirtualRange()</tt>.
+   */
+  protected void unpinVirtualRange(int vpn, int count, int[] ppns) {
+    for (int i=0; i<count; i++)
+      unpinVirtualPage(vpn+i);
+  }
   protected int pinVirtualPage(int vpn, boolean isUserWrite) {
     if (vpn < 0 || vpn >= pageTable.length)
       return -1;
@@ -367,8 +422,11 @@ public class UserProcess {
 
     pageTable = new TranslationEntry[numPages];
 
+    // take consecutive frames if a long enough run is free
+    int firstPPN = UserKernel.freePages.allocateRun(numPages);
     for (int vpn=0; vpn<numPages; vpn++) {
-      int ppn = ((Integer)UserKernel.freePages.removeFirst()).intValue();
+      int ppn = (firstPPN != -1) ? firstPPN + vpn :
+        UserKernel.freePages.allocate();
 
       pageTable[vpn] = new TranslationEntry(vpn, ppn,
           true, false, false, false);
@@ -399,7 +457,7 @@ public class UserProcess {
    */
   protected void unloadSections() {
     for (int vpn=0; vpn<pageTable.length; vpn++)
-      UserKernel.freePages.add(new Integer(pageTable[vpn].ppn));
+      UserKernel.freePages.free(pageTable[vpn].ppn);
   }    
 
   /**
@@ -787,7 +845,11 @@ public class UserProcess {
   private boolean abnormalTermination = false;
 
   private byte[] ioBuffer = new byte[ioBufferSize];
-  private static final int ioBufferSize = 1024;
+  private static final int ioBufferSize = 8192;
+
+  /** The most pages a single copy pins at once. */
+  protected static final int maxPinPages = ioBufferSize/Processor.pageSize + 1;
+  private int[] pinnedPPNs = new int[maxPinPages];
 
   protected OpenFile[] fileTable = new OpenFile[maxFiles];
   protected static final int maxFiles = 16;
@@ -0,0 +1,157 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * A simplified CLOCK-Pro replacement policy. Frames are classified as hot
+ * or cold, and only cold frames are evicted. A newly loaded page starts
+ * cold and in its test period; if it is referenced again during that
+ * period it becomes hot. A cold page evicted during its test period is
+ * remembered, and if it faults back in before being forgotten it is loaded
+ * hot. A second hand demotes hot frames whose used bit is clear whenever
+ * hot frames take more than their share of memory. The share kept for cold
+ * frames adapts: it grows when remembered pages come back, and shrinks when
+ * they are forgotten without coming back.
+ */
+public class ClockProReplacement extends ReplacementPolicy {
+  /**
+   * Allocate a new CLOCK-Pro replacement policy.
+   */
+  public ClockProReplacement() {
+    super();
+    hot = new boolean[numFrames];
+    test = new boolean[numFrames];
+    coldTarget = Math.max(1, numFrames/4);
+  }
+
+  public int selectVictim() {
+    while(numHot > numFrames - coldTarget && demoteHot())
+      ;
+
+    int victim = sweepCold();
+
+    // every unpinned frame was hot; demote one and try again
+    if(victim == -1 && demoteHot())
+      victim = sweepCold();
+
+    return victim;
+  }
+
+  public void frameLoaded(int ppn) {
+    if(hot[ppn])
+      numHot--;
+
+    // a page faulting back in during its test period is hot
+    if(nonResident.remove(key(ppn))) {
+      hot[ppn] = true;
+      numHot++;
+      test[ppn] = false;
+      coldTarget = Math.min(numFrames - 1, coldTarget + 1);
+    }
+    else {
+      hot[ppn] = false;
+      test[ppn] = true;
+    }
+  }
+
+  /**
+   * Advance the cold hand to an unpinned cold frame whose used bit is clear.
+   * Referenced cold frames are promoted if in their test period, and start
+   * one otherwise. Returns -1 if no cold frame can be evicted.
+   */
+  private int sweepCold() {
+    for(int i = 0; i < 2*numFrames; i++) {
+      int ppn = coldHand;
+      coldHand = (coldHand + 1) % numFrames;
+
+      if(isPinned(ppn))
+        continue;
+
+      TranslationEntry pte = entry(ppn);
+      if(pte == null || hot[ppn])
+        continue;
+
+      if(pte.used) {
+        pte.used = false;
+        if(test[ppn]) {
+          hot[ppn] = true;
+          numHot++;
+          test[ppn] = false;
+        }
+        else {
+          test[ppn] = true;
+        }
+        continue;
+      }
+
+      if(test[ppn])
+        remember(key(ppn));
+      test[ppn] = false;
+      return ppn;
+    }
+
+    return -1;
+  }
+
+  /**
+   * Advance the hot hand to an unpinned hot frame whose used bit is clear
+   * and make it cold. Returns <tt>false</tt> if no hot frame could be
+   * demoted.
+   */
+  private boolean demoteHot() {
+    for(int i = 0; i < 2*numFrames; i++) {
+      int ppn = hotHand;
+      hotHand = (hotHand + 1) % numFrames;
+
+      if(!hot[ppn] || isPinned(ppn))
+        continue;
+
+      TranslationEntry pte = entry(ppn);
+      if(pte != null && pte.used) {
+        pte.used = false;
+        continue;
+      }
+
+      hot[ppn] = false;
+      numHot--;
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Remember an evicted page for its test period. The oldest remembered
+   * page is forgotten once as many pages are remembered as there are frames.
+   */
+  private void remember(long key) {
+    nonResident.add(key);
+
+    if(nonResident.size() > numFrames) {
+      Iterator<Long> oldest = nonResident.iterator();
+      oldest.next();
+      oldest.remove();
+      coldTarget = Math.max(1, coldTarget - 1);
+    }
+  }
+
+  /** Identify the page in a frame by its owner's process ID and its vpn. */
+  private long key(int ppn) {
+    VMKernel.PhysicalPage page = VMKernel.invTable[ppn];
+    return ((long) page.proc.processID() << 32) | (page.vpn & 0xFFFFFFFFL);
+  }
+
+  private boolean[] hot;
+  private boolean[] test;
+  private int numHot = 0;
+  private int coldTarget;
+
+  private int coldHand = 0;
+  private int hotHand = 0;
+
+  /** Evicted cold pages still in their test period. */
+  private LinkedHashSet<Long> nonResident = new LinkedHashSet<Long>();
+}
@@ -0,0 +1,41 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Global second-chance clock replacement. A single hand sweeps every frame,
+ * clearing used bits, and stops at the first unpinned frame whose used bit
+ * is already clear.
+ */
+public class ClockReplacement extends ReplacementPolicy {
+  /**
+   * Allocate a new clock replacement policy.
+   */
+  public ClockReplacement() {
+    super();
+  }
+
+  public int selectVictim() {
+    // the first sweep clears every unpinned used bit, so the second
+    // sweep finds a victim unless every frame is pinned
+    for(int i = 0; i < 2*numFrames; i++) {
+      int ppn = hand;
+      hand = (hand + 1) % numFrames;
+
+      if(isPinned(ppn))
+        continue;
+
+      TranslationEntry pte = entry(ppn);
+      if(pte == null)
+        continue;  // on the free list
+      if(!pte.used)
+        return ppn;
+
+      pte.used = false;
+    }
+
+    return -1;
+  }
+
+  private int hand = 0;
+}
@@ -0,0 +1,144 @@
+package nachos.vm;
+
+import java.util.HashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import nachos.machine.*;
+
+/**
+ * Compressed copies of swap pages, kept in host memory in front of the swap
+ * file. A page written to swap is stored here instead if it compresses to
+ * at most <tt>maxPageBytes</tt> and the cache has room for it, so pages
+ * that are mostly zeros come back without a file read. The cache never
+ * holds more than <tt>maxBytes</tt> of compressed data; pages that do not
+ * fit go to the file as before. The caller serializes access.
+ */
+public class CompressedPageCache {
+  /**
+   * Allocate an empty cache.
+   *
+   * @param maxBytes the most compressed bytes the cache may hold.
+   * @param maxPageBytes the largest compressed size of a page it accepts.
+   */
+  public CompressedPageCache(int maxBytes, int maxPageBytes) {
+    Lib.assertTrue(maxBytes > 0 && maxPageBytes > 0);
+
+    this.maxBytes = maxBytes;
+    this.maxPageBytes = maxPageBytes;
+  }
+
+  /**
+   * Compress one page and store it as swap page spn, replacing any copy
+   * already stored for spn.
+   *
+   * @param spn the swap page being written.
+   * @param buf the buffer holding the page.
+   * @param offset the first byte of the page in the buffer.
+   * @return <tt>false</tt> if the page was not stored, and must be written
+   *         to the file.
+   */
+  public boolean store(int spn, byte[] buf, int offset) {
+    remove(spn);
+
+    deflater.reset();
+    deflater.setInput(buf, offset, pageSize);
+    deflater.finish();
+    int length = deflater.deflate(compressBuffer);
+
+    if(!deflater.finished() || length > maxPageBytes ||
+        numBytes + length > maxBytes) {
+      numRejected++;
+      return false;
+    }
+
+    byte[] data = new byte[length];
+    System.arraycopy(compressBuffer, 0, data, 0, length);
+    pages.put(new Integer(spn), data);
+    numBytes += length;
+
+    numStored++;
+    bytesIn += pageSize;
+    bytesOut += length;
+    return true;
+  }
+
+  /**
+   * Restore swap page spn into the specified buffer if it is stored here.
+   *
+   * @param spn the swap page to read.
+   * @param buf the destination buffer.
+   * @param offset the first byte to write in the buffer.
+   * @return <tt>false</tt> if the page is not stored here.
+   */
+  public boolean load(int spn, byte[] buf, int offset) {
+    byte[] data = (byte[]) pages.get(new Integer(spn));
+    if(data == null)
+      return false;
+
+    inflater.reset();
+    inflater.setInput(data);
+    try {
+      Lib.assertTrue(inflater.inflate(buf, offset, pageSize) == pageSize);
+    }
+    catch(DataFormatException e) {
+      Lib.assertNotReached("corrupt compressed page " + spn);
+    }
+
+    numHits++;
+    return true;
+  }
+
+  /**
+   * Return <tt>true</tt> if swap page spn is stored here.
+   */
+  public boolean contains(int spn) {
+    return !pages.isEmpty() && pages.containsKey(new Integer(spn));
+  }
+
+  /**
+   * Drop the copy of swap page spn, if any. Called when the swap page is
+   * freed or written to the file.
+   */
+  public void remove(int spn) {
+    if(pages.isEmpty())
+      return;
+
+    byte[] data = (byte[]) pages.remove(new Integer(spn));
+    if(data != null)
+      numBytes -= data.length;
+  }
+
+  /**
+   * Return the number of pages stored.
+   */
+  public int getNumPages() {
+    return pages.size();
+  }
+
+  /**
+   * Return the number of compressed bytes held.
+   */
+  public int getNumBytes() {
+    return numBytes;
+  }
+
+  private int maxBytes;
+  private int maxPageBytes;
+
+  /** Compressed pages, keyed by swap page number. */
+  private HashMap pages = new HashMap();
+  private int numBytes = 0;
+
+  private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+  private Inflater inflater = new Inflater();
+  /** Large enough for a page that does not compress at all. */
+  private byte[] compressBuffer = new byte[pageSize + 64];
+
+  /** Pages stored and turned away, and pages restored from the cache. */
+  public int numStored = 0, numRejected = 0, numHits = 0;
+  /** Bytes of the pages stored, before and after compression. */
+  public long bytesIn = 0, bytesOut = 0;
+
+  private static final int pageSize = Processor.pageSize;
+}
@@ -0,0 +1,34 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * First-in first-out TLB replacement. Entries are replaced in the order they
+ * were loaded, whatever their used bits.
+ */
+public class FIFOTLBReplacement extends TLBReplacementPolicy {
+  /**
+   * Allocate a new FIFO TLB replacement policy.
+   */
+  public FIFOTLBReplacement() {
+    super();
+    loadTime = new long[tlbSize];
+  }
+
+  public int selectVictim() {
+    int victim = 0;
+    for(int slot = 1; slot < tlbSize; slot++) {
+      if(loadTime[slot] < loadTime[victim])
+        victim = slot;
+    }
+    return victim;
+  }
+
+  public void entryLoaded(int slot) {
+    loadTime[slot] = ++loads;
+  }
+
+  /** When each entry was loaded, counted in loads. */
+  private long[] loadTime;
+  private long loads = 0;
+}
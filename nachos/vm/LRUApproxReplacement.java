@@ -0,0 +1,44 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * LRU approximation by aging. Each frame keeps an 8-bit history of its used
+ * bit; on every eviction the histories shift right, the current used bits
+ * enter at the top, and the unpinned frame with the smallest history is
+ * evicted.
+ */
+public class LRUApproxReplacement extends ReplacementPolicy {
+  /**
+   * Allocate a new aging replacement policy.
+   */
+  public LRUApproxReplacement() {
+    super();
+    age = new int[numFrames];
+  }
+
+  public int selectVictim() {
+    int victim = -1;
+
+    for(int ppn = 0; ppn < numFrames; ppn++) {
+      TranslationEntry pte = entry(ppn);
+      if(pte == null)
+        continue;  // on the free list
+
+      age[ppn] = (age[ppn] >>> 1) | (pte.used ? 0x80 : 0);
+      pte.used = false;
+
+      if(!isPinned(ppn) && (victim == -1 || age[ppn] < age[victim]))
+        victim = ppn;
+    }
+
+    return victim;
+  }
+
+  public void frameLoaded(int ppn) {
+    // a newly loaded page counts as just referenced
+    age[ppn] = 0x80;
+  }
+
+  private int[] age;
+}
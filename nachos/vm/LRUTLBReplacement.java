@@ -0,0 +1,35 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Approximate least-recently-used TLB replacement. At every replacement each
+ * entry's 8-bit age is shifted right and its used bit shifted in at the top;
+ * the entry with the lowest age is replaced.
+ */
+public class LRUTLBReplacement extends TLBReplacementPolicy {
+  /**
+   * Allocate a new LRU TLB replacement policy.
+   */
+  public LRUTLBReplacement() {
+    super();
+    age = new int[tlbSize];
+  }
+
+  public int selectVictim() {
+    int victim = 0;
+    for(int slot = 0; slot < tlbSize; slot++) {
+      age[slot] = (age[slot] >>> 1) | (testAndClearUsed(slot) ? 0x80 : 0);
+      if(age[slot] < age[victim])
+        victim = slot;
+    }
+    return victim;
+  }
+
+  public void entryLoaded(int slot) {
+    // a newly loaded entry counts as just referenced
+    age[slot] = 0x80;
+  }
+
+  private int[] age;
+}
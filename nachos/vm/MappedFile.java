@@ -0,0 +1,73 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A file mapped into a process's address space by <tt>mmap()</tt>. Each
+ * page of the mapping is backed by the page at the same offset in the
+ * file: pages are read from the file when first touched, and dirty pages
+ * are written back to it when evicted or unmapped, rather than to swap.
+ */
+public class MappedFile {
+  /**
+   * Map the specified file at the specified vpn.
+   *
+   * @param file the file being mapped.
+   * @param firstVPN the vpn of the first page of the mapping.
+   */
+  public MappedFile(OpenFile file, int firstVPN) {
+    this.file = file;
+    this.firstVPN = firstVPN;
+
+    length = file.length();
+    numPages = Lib.divRoundUp(length, pageSize);
+  }
+
+  /**
+   * Return <tt>true</tt> if the mapping covers the specified vpn.
+   */
+  public boolean contains(int vpn) {
+    return vpn >= firstVPN && vpn < firstVPN + numPages;
+  }
+
+  /**
+   * Read the file page backing vpn into frame ppn. The part of the last
+   * page beyond the end of the file, or any page that cannot be read, is
+   * zero-filled.
+   */
+  public void readPage(int vpn, int ppn) {
+    byte[] memory = Machine.processor().getMemory();
+    int offset = (vpn - firstVPN)*pageSize;
+
+    int amount = file.read(offset, memory, ppn*pageSize,
+      Math.min(pageSize, length - offset));
+    if (amount < 0)
+      amount = 0;
+
+    for (int i = amount; i < pageSize; i++)
+      memory[ppn*pageSize + i] = 0;
+  }
+
+  /**
+   * Write frame ppn back to the file page backing vpn. Bytes beyond the
+   * end of the file are not written, so the file never grows.
+   *
+   * @return <tt>false</tt> if the write failed.
+   */
+  public boolean writePage(int vpn, int ppn) {
+    byte[] memory = Machine.processor().getMemory();
+    int offset = (vpn - firstVPN)*pageSize;
+    int amount = Math.min(pageSize, length - offset);
+
+    return file.write(offset, memory, ppn*pageSize, amount) == amount;
+  }
+
+  /** The mapped file. */
+  public OpenFile file;
+  /** The vpn of the first page, and the number of pages mapped. */
+  public int firstVPN, numPages;
+  /** The length of the file when it was mapped. */
+  public int length;
+
+  private static final int pageSize = Processor.pageSize;
+}
@@ -0,0 +1,35 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Not-recently-used TLB replacement. Entries are ranked by their used and
+ * dirty bits, unused clean entries first, and the first entry of the lowest
+ * rank after a rotating hand is replaced. Used bits are cleared at every
+ * replacement, so they record use since the last one.
+ */
+public class NRUTLBReplacement extends TLBReplacementPolicy {
+  /**
+   * Allocate a new NRU TLB replacement policy.
+   */
+  public NRUTLBReplacement() {
+    super();
+  }
+
+  public int selectVictim() {
+    int victim = -1, victimRank = 4;
+    for(int i = 0; i < tlbSize; i++) {
+      int slot = (hand + i) % tlbSize;
+      int rank = (testAndClearUsed(slot) ? 2 : 0) + (isDirty(slot) ? 1 : 0);
+      if(rank < victimRank) {
+        victim = slot;
+        victimRank = rank;
+      }
+    }
+
+    hand = (victim + 1) % tlbSize;
+    return victim;
+  }
+
+  private int hand = 0;
+}
@@ -0,0 +1,157 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A process's page table, kept as a directory of blocks of
+ * <tt>blockPages</tt> pages. A block is only allocated when one of its
+ * pages is first used, and a translation entry only when its page is, so
+ * unused parts of the address space take no memory and a new process
+ * starts with an empty table whatever its size. Each page also records the
+ * swap page holding it and the TLB slot holding it.
+ */
+public class PageTable {
+  /**
+   * Allocate an empty page table.
+   */
+  public PageTable() {
+  }
+
+  /**
+   * Return the translation entry for vpn, creating an invalid one if the
+   * page has not been used before.
+   */
+  public TranslationEntry getEntry(int vpn) {
+    Block block = getBlock(vpn, true);
+    int i = vpn & blockMask;
+
+    if (block.entries[i] == null)
+      block.entries[i] = new TranslationEntry(vpn, -1,
+          false, false, false, false);
+    return block.entries[i];
+  }
+
+  /**
+   * Return <tt>true</tt> if vpn has a valid translation. Never creates an
+   * entry.
+   */
+  public boolean isValid(int vpn) {
+    Block block = getBlock(vpn, false);
+    if (block == null)
+      return false;
+
+    TranslationEntry entry = block.entries[vpn & blockMask];
+    return entry != null && entry.valid;
+  }
+
+  /**
+   * Return the swap page holding vpn, or -1 if it is not in swap.
+   */
+  public int getSwapPage(int vpn) {
+    Block block = getBlock(vpn, false);
+    return (block == null) ? -1 : block.swapPages[vpn & blockMask];
+  }
+
+  /**
+   * Record the swap page holding vpn, or -1 if it is not in swap.
+   */
+  public void setSwapPage(int vpn, int spn) {
+    getEntry(vpn); // so that nextEntry() finds the page
+    getBlock(vpn, true).swapPages[vpn & blockMask] = spn;
+  }
+
+  /**
+   * Return the TLB slot holding vpn, or -1 if it is not in the TLB.
+   */
+  public int getTLBSlot(int vpn) {
+    Block block = getBlock(vpn, false);
+    return (block == null) ? -1 : block.tlbSlots[vpn & blockMask];
+  }
+
+  /**
+   * Record the TLB slot holding vpn, or -1 if it is not in the TLB.
+   */
+  public void setTLBSlot(int vpn, int slot) {
+    getBlock(vpn, true).tlbSlots[vpn & blockMask] = slot;
+  }
+
+  /**
+   * Return the first vpn at or after the specified one that has a
+   * translation entry, or -1 if there is none. Blocks never allocated are
+   * skipped whole.
+   */
+  public int nextEntry(int vpn) {
+    while ((vpn >> blockShift) < directory.length) {
+      Block block = directory[vpn >> blockShift];
+      if (block == null) {
+        vpn = ((vpn >> blockShift) + 1) << blockShift;
+        continue;
+      }
+
+      if (block.entries[vpn & blockMask] != null)
+        return vpn;
+      vpn++;
+    }
+    return -1;
+  }
+
+  /**
+   * Return every swap page held by this table to the swap area.
+   */
+  public void freeSwap(SwapSpace swapSpace) {
+    for (int i = 0; i < directory.length; i++) {
+      if (directory[i] != null)
+        swapSpace.free(directory[i].swapPages);
+    }
+  }
+
+  /**
+   * Return the number of blocks allocated.
+   */
+  public int getNumBlocks() {
+    return numBlocks;
+  }
+
+  private Block getBlock(int vpn, boolean create) {
+    Lib.assertTrue(vpn >= 0);
+    int index = vpn >> blockShift;
+
+    if (index >= directory.length) {
+      if (!create)
+        return null;
+
+      Block[] newDirectory =
+        new Block[Math.max(index + 1, 2*directory.length)];
+      System.arraycopy(directory, 0, newDirectory, 0, directory.length);
+      directory = newDirectory;
+    }
+
+    if (directory[index] == null && create) {
+      directory[index] = new Block();
+      numBlocks++;
+    }
+    return directory[index];
+  }
+
+  /** The pages of one block; entries are created on first use. */
+  private static class Block {
+    Block() {
+      for (int i = 0; i < blockPages; i++) {
+        swapPages[i] = -1;
+        tlbSlots[i] = -1;
+      }
+    }
+
+    TranslationEntry[] entries = new TranslationEntry[blockPages];
+    int[] swapPages = new int[blockPages];
+    int[] tlbSlots = new int[blockPages];
+  }
+
+  /** Directory of blocks, indexed by vpn / blockPages; grown as needed. */
+  private Block[] directory = new Block[1];
+  private int numBlocks = 0;
+
+  private static final int blockShift = 8;
+  private static final int blockPages = 1 << blockShift;
+  private static final int blockMask = blockPages - 1;
+}
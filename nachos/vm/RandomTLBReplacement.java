@@ -0,0 +1,19 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Random TLB replacement.
+ */
+public class RandomTLBReplacement extends TLBReplacementPolicy {
+  /**
+   * Allocate a new random TLB replacement policy.
+   */
+  public RandomTLBReplacement() {
+    super();
+  }
+
+  public int selectVictim() {
+    return Lib.random(tlbSize);
+  }
+}
@@ -0,0 +1,61 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Chooses which frame to evict when no frames are free. A policy sees every
+ * frame in <tt>VMKernel.invTable</tt>, whichever process owns it, and reads
+ * used bits from the page table of that frame's owner. The policy is
+ * selected by the <tt>nachos.conf</tt> key
+ * <tt>VMKernel.replacementPolicy</tt>.
+ *
+ * @see nachos.vm.VMKernel#getFrame
+ */
+public abstract class ReplacementPolicy {
+  /**
+   * Allocate a new replacement policy.
+   */
+  public ReplacementPolicy() {
+    numFrames = Machine.processor().getNumPhysPages();
+  }
+
+  /**
+   * Choose a frame to evict. Pinned frames must never be chosen, nor frames
+   * the page-out daemon is already writing, nor frames on the free list.
+   * Called with the memory lock held.
+   *
+   * @return the ppn of the victim, or -1 if every frame is pinned.
+   */
+  public abstract int selectVictim();
+
+  /**
+   * Notify the policy that a page has just been loaded into a frame. The
+   * frame's entry in <tt>VMKernel.invTable</tt> already names its new
+   * owner.
+   *
+   * @param ppn the frame that was loaded.
+   */
+  public void frameLoaded(int ppn) {
+  }
+
+  /**
+   * Return <tt>true</tt> if the specified frame may not be evicted, either
+   * because it is pinned or because the kernel is looking for a victim
+   * among other processes' frames.
+   */
+  protected boolean isPinned(int ppn) {
+    return VMKernel.invTable[ppn].pinCount > 0 ||
+      VMKernel.invTable[ppn].pagingOut || VMKernel.isShielded(ppn);
+  }
+
+  /**
+   * Return the page table entry mapping the specified frame, or
+   * <tt>null</tt> if the frame is not in use.
+   */
+  protected TranslationEntry entry(int ppn) {
+    return VMKernel.ownerEntry(ppn);
+  }
+
+  /** The number of physical frames. */
+  protected int numFrames;
+}
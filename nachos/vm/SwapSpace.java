@@ -0,0 +1,472 @@
+package nachos.vm;
+
+import java.util.HashMap;
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Swap area backed by a single file. Swap pages are tracked with a
+ * multi-level bitmap so that allocating or freeing a page takes constant
+ * time. The backing file grows one extent at a time as pages are needed, up
+ * to a fixed limit; once the limit is reached and every page is in use,
+ * allocation fails rather than waiting. Callers hold the kernel's memory
+ * lock, which every path that frees swap pages also takes, so waiting here
+ * could never end. An optional cache of compressed
+ * pages in host memory sits in front of the file: pages it accepts are
+ * neither written to nor read from the file.
+ */
+public class SwapSpace {
+  /**
+   * Allocate a new swap area.
+   *
+   * @param file the file holding swapped pages.
+   * @param extentPages the number of pages to add each time the area grows.
+   * @param maxPages the maximum number of pages the area may hold.
+   * @param cache the compressed page cache in front of the file, or
+   *              <tt>null</tt> for none.
+   */
+  public SwapSpace(OpenFile file, int extentPages, int maxPages,
+      CompressedPageCache cache) {
+    Lib.assertTrue(extentPages > 0 && maxPages > 0);
+
+    this.file = file;
+    this.extentPages = extentPages;
+    this.maxPages = maxPages;
+    this.cache = cache;
+
+    // one bit per page at the bottom; every level above keeps one bit per
+    // word below it, set when that word still has a free page
+    int levels = 1;
+    for (int n = maxPages; n > wordBits; n = Lib.divRoundUp(n, wordBits))
+      levels++;
+
+    freeMap = new long[levels][];
+    for (int i = 0, n = maxPages; i < levels; i++) {
+      n = Lib.divRoundUp(n, wordBits);
+      freeMap[i] = new long[n];
+    }
+
+    lock = new Lock();
+  }
+
+  /**
+   * Allocate a swap page, growing the swap file if every page is in use.
+   * Never waits.
+   *
+   * @return the allocated swap page number, or -1 if the area is at its
+   *         limit and every page is in use.
+   */
+  public int allocate() {
+    lock.acquire();
+
+    if (numFree == 0 && !grow()) {
+      lock.release();
+      return -1;
+    }
+
+    int spn = findFree();
+    markUsed(spn);
+    numFree--;
+
+    lock.release();
+
+    return spn;
+  }
+
+  /**
+   * Allocate a run of consecutive swap pages, growing the swap file if no
+   * run is free. Unlike <tt>allocate()</tt>, never waits.
+   *
+   * @param count the number of pages in the run.
+   * @return the first swap page of the run, or -1 if no run is available.
+   */
+  public int allocate(int count) {
+    lock.acquire();
+
+    int spn = findRun(count);
+    if (spn == -1 && count <= extentPages && grow())
+      spn = findRun(count);
+
+    if (spn != -1) {
+      for (int i = 0; i < count; i++)
+        markUsed(spn + i);
+      numFree -= count;
+    }
+
+    lock.release();
+
+    return spn;
+  }
+
+  /**
+   * Return a swap page to the free pool.
+   *
+   * @param spn the swap page to free.
+   */
+  public void free(int spn) {
+    free(spn, 1);
+  }
+
+  /**
+   * Return a run of consecutive swap pages to the free pool.
+   *
+   * @param spn the first swap page to free.
+   * @param count the number of pages to free.
+   */
+  public void free(int spn, int count) {
+    lock.acquire();
+
+    for (int i = 0; i < count; i++) {
+      Lib.assertTrue(isAllocated(spn + i));
+      if (release(spn + i)) {
+        markFree(spn + i);
+        numFree++;
+        uncache(spn + i);
+      }
+    }
+    lock.release();
+  }
+
+  /**
+   * Return every swap page listed in the specified map to the free pool,
+   * and mark each entry of the map with -1. Entries that are already -1 are
+   * skipped.
+   *
+   * @param map an array of swap page numbers.
+   */
+  public void free(int[] map) {
+    lock.acquire();
+
+    for (int i = 0; i < map.length; i++) {
+      if (map[i] == -1)
+        continue;
+
+      Lib.assertTrue(isAllocated(map[i]));
+      if (release(map[i])) {
+        markFree(map[i]);
+        numFree++;
+        uncache(map[i]);
+      }
+      map[i] = -1;
+    }
+
+    lock.release();
+  }
+
+  /**
+   * Add a reference to an allocated swap page, so that it is only returned
+   * to the free pool once every holder has freed it. Used when several
+   * processes share the page's contents.
+   *
+   * @param spn the swap page to share.
+   */
+  public void share(int spn) {
+    lock.acquire();
+
+    Lib.assertTrue(isAllocated(spn));
+    Integer refs = (Integer) extraRefs.get(new Integer(spn));
+    extraRefs.put(new Integer(spn),
+      new Integer(refs == null ? 1 : refs.intValue() + 1));
+
+    lock.release();
+  }
+
+  /**
+   * Test whether a swap page is currently allocated.
+   *
+   * @param spn the swap page to test.
+   * @return <tt>true</tt> if <i>spn</i> is allocated.
+   */
+  public boolean isAllocated(int spn) {
+    if (spn < 0 || spn >= numPages)
+      return false;
+
+    return (freeMap[0][spn / wordBits] & (1L << (spn % wordBits))) == 0;
+  }
+
+  /**
+   * Read one swap page into the specified buffer.
+   *
+   * @param spn the swap page to read.
+   * @param buf the destination buffer.
+   * @param offset the first byte to write in the buffer.
+   * @return the number of bytes read, or -1 on error.
+   */
+  public int read(int spn, byte[] buf, int offset) {
+    return read(spn, buf, offset, 1);
+  }
+
+  /**
+   * Read consecutive swap pages into the specified buffer. Pages held by
+   * the compressed page cache are restored from it, and each run of the
+   * others is read with a single file read.
+   *
+   * @param spn the first swap page to read.
+   * @param buf the destination buffer.
+   * @param offset the first byte to write in the buffer.
+   * @param count the number of pages to read.
+   * @return the number of bytes read, or -1 on error.
+   */
+  public int read(int spn, byte[] buf, int offset, int count) {
+    if (cache == null)
+      return readFile(spn, buf, offset, count);
+
+    for (int i = 0; i < count; ) {
+      lock.acquire();
+      boolean hit = cache.load(spn + i, buf, offset + i*pageSize);
+      lock.release();
+      if (hit) {
+        i++;
+        continue;
+      }
+
+      int n = 1;
+      while (i + n < count && !isCached(spn + i + n))
+        n++;
+      if (readFile(spn + i, buf, offset + i*pageSize, n) != n*pageSize)
+        return -1;
+      i += n;
+    }
+    return count*pageSize;
+  }
+
+  private int readFile(int spn, byte[] buf, int offset, int count) {
+    numReads++;
+    numPagesRead += count;
+    return file.read(spn*pageSize, buf, offset, count*pageSize);
+  }
+
+  /**
+   * Write one swap page from the specified buffer.
+   *
+   * @param spn the swap page to write.
+   * @param buf the source buffer.
+   * @param offset the first byte to read from the buffer.
+   * @return the number of bytes written, or -1 on error.
+   */
+  public int write(int spn, byte[] buf, int offset) {
+    return write(spn, buf, offset, 1);
+  }
+
+  /**
+   * Write consecutive swap pages from the specified buffer. Pages the
+   * compressed page cache accepts are kept there, and each run of the
+   * others is written with a single file write.
+   *
+   * @param spn the first swap page to write.
+   * @param buf the source buffer.
+   * @param offset the first byte to read from the buffer.
+   * @param count the number of pages to write.
+   * @return the number of bytes written, or -1 on error.
+   */
+  public int write(int spn, byte[] buf, int offset, int count) {
+    if (cache == null)
+      return writeFile(spn, buf, offset, count);
+
+    for (int i = 0; i < count; ) {
+      if (store(spn + i, buf, offset + i*pageSize)) {
+        i++;
+        continue;
+      }
+
+      // the run ends at the next page the cache accepts, or at the end
+      int n = 1;
+      while (i + n < count &&
+          !store(spn + i + n, buf, offset + (i+n)*pageSize))
+        n++;
+      if (writeFile(spn + i, buf, offset + i*pageSize, n) != n*pageSize)
+        return -1;
+      i += n + 1;
+    }
+    return count*pageSize;
+  }
+
+  private int writeFile(int spn, byte[] buf, int offset, int count) {
+    numWrites++;
+    numPagesWritten += count;
+    return file.write(spn*pageSize, buf, offset, count*pageSize);
+  }
+
+  /**
+   * Return the number of pages the swap file currently spans.
+   */
+  public int getNumPages() {
+    return numPages;
+  }
+
+  /**
+   * Return the number of pages that can still be allocated, counting those
+   * the area can grow by before reaching its limit.
+   */
+  public int getNumAvailable() {
+    return numFree + (maxPages - numPages);
+  }
+
+  /**
+   * Return the number of unallocated pages within the current extents.
+   */
+  public int getNumFree() {
+    return numFree;
+  }
+
+  /**
+   * Return the compressed page cache in front of the file, or
+   * <tt>null</tt> if there is none.
+   */
+  public CompressedPageCache getCache() {
+    return cache;
+  }
+
+  /**
+   * Close the backing file.
+   */
+  public void close() {
+    file.close();
+  }
+
+  /**
+   * Extend the swap area by one extent. Writes the last page of the new
+   * extent so the host file is sized once per extent rather than once per
+   * page. Returns <tt>false</tt> if the area is already at its limit.
+   */
+  private boolean grow() {
+    if (numPages >= maxPages)
+      return false;
+
+    int first = numPages;
+    numPages = Math.min(numPages + extentPages, maxPages);
+
+    file.write((numPages-1)*pageSize, new byte[pageSize], 0, pageSize);
+
+    for (int spn = first; spn < numPages; spn++)
+      markFree(spn);
+    numFree += numPages - first;
+
+    Lib.debug(dbgVM, "swap area grown to " + numPages + " pages");
+    return true;
+  }
+
+  /**
+   * Find the first run of <i>count</i> free pages, skipping words with no
+   * free page. Returns -1 if there is none.
+   */
+  private int findRun(int count) {
+    int run = 0;
+    for (int spn = 0; spn < numPages; spn++) {
+      if (spn % wordBits == 0 && freeMap[0][spn / wordBits] == 0) {
+        run = 0;
+        spn += wordBits - 1;
+        continue;
+      }
+
+      if (isAllocated(spn))
+        run = 0;
+      else if (++run == count)
+        return spn - count + 1;
+    }
+    return -1;
+  }
+
+  /**
+   * Walk from the top level down, following the lowest set bit at each
+   * level, to find a free page.
+   */
+  private int findFree() {
+    int index = 0;
+    for (int level = freeMap.length-1; level >= 0; level--) {
+      long word = freeMap[level][index];
+      Lib.assertTrue(word != 0);
+      index = index*wordBits + Long.numberOfTrailingZeros(word);
+    }
+    return index;
+  }
+
+  /**
+   * Drop one reference to a swap page. Returns <tt>true</tt> if it was the
+   * last, so the page can be freed.
+   */
+  private boolean release(int spn) {
+    if (extraRefs.isEmpty())
+      return true;
+
+    Integer refs = (Integer) extraRefs.remove(new Integer(spn));
+    if (refs == null)
+      return true;
+
+    if (refs.intValue() > 1)
+      extraRefs.put(new Integer(spn), new Integer(refs.intValue() - 1));
+    return false;
+  }
+
+  private boolean store(int spn, byte[] buf, int offset) {
+    lock.acquire();
+    boolean stored = cache.store(spn, buf, offset);
+    lock.release();
+    return stored;
+  }
+
+  private boolean isCached(int spn) {
+    lock.acquire();
+    boolean cached = cache.contains(spn);
+    lock.release();
+    return cached;
+  }
+
+  /** Drop a freed page from the cache. Called with the lock held. */
+  private void uncache(int spn) {
+    if (cache != null)
+      cache.remove(spn);
+  }
+
+  private void markFree(int spn) {
+    int index = spn;
+    for (int level = 0; level < freeMap.length; level++) {
+      long word = freeMap[level][index / wordBits];
+      freeMap[level][index / wordBits] = word | (1L << (index % wordBits));
+
+      // the level above already knows this word has a free page
+      if (word != 0)
+        break;
+      index /= wordBits;
+    }
+  }
+
+  private void markUsed(int spn) {
+    int index = spn;
+    for (int level = 0; level < freeMap.length; level++) {
+      long word = freeMap[level][index / wordBits] & ~(1L << (index % wordBits));
+      freeMap[level][index / wordBits] = word;
+
+      // the word still has a free page, so the level above is unchanged
+      if (word != 0)
+        break;
+      index /= wordBits;
+    }
+  }
+
+  private OpenFile file;
+  private CompressedPageCache cache;
+  private int extentPages;
+  private int maxPages;
+
+  /** Number of pages covered by the extents allocated so far. */
+  private int numPages = 0;
+  /** Number of free pages within those extents. */
+  private int numFree = 0;
+
+  /** Bit set means free; <tt>freeMap[0]</tt> has one bit per page. */
+  private long[][] freeMap;
+
+  /** References beyond the first to shared pages, keyed by page. */
+  private HashMap extraRefs = new HashMap();
+
+  private Lock lock;
+
+  /** Number of file reads and writes issued, and the pages they moved. */
+  public int numReads = 0, numPagesRead = 0;
+  public int numWrites = 0, numPagesWritten = 0;
+
+  private static final int wordBits = 64;
+  private static final int pageSize = Processor.pageSize;
+  private static final char dbgVM = 'v';
+}
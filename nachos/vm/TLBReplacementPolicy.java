@@ -0,0 +1,63 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Chooses which TLB entry to replace on a TLB miss when every entry is in
+ * use. The TLB always holds the translations of
+ * <tt>VMKernel.tlbProcess</tt>. The policy is selected by the
+ * <tt>nachos.conf</tt> key <tt>VMKernel.tlbReplacementPolicy</tt>.
+ *
+ * @see nachos.vm.VMProcess#handleException
+ */
+public abstract class TLBReplacementPolicy {
+  /**
+   * Allocate a new TLB replacement policy.
+   */
+  public TLBReplacementPolicy() {
+    tlbSize = Machine.processor().getTLBSize();
+  }
+
+  /**
+   * Choose a TLB entry to replace. Called only when every entry is valid.
+   *
+   * @return the index of the victim entry.
+   */
+  public abstract int selectVictim();
+
+  /**
+   * Notify the policy that a translation has just been loaded into an
+   * entry.
+   *
+   * @param slot the index of the entry that was loaded.
+   */
+  public void entryLoaded(int slot) {
+  }
+
+  /**
+   * Return <tt>true</tt> if the specified entry has been used since the
+   * last call, and clear its used bit. The bit is moved to the page table,
+   * so the page replacement policy still sees the reference.
+   */
+  protected boolean testAndClearUsed(int slot) {
+    TranslationEntry tlbe = Machine.processor().readTLBEntry(slot);
+    if(!tlbe.used)
+      return false;
+
+    VMKernel.tlbProcess.getEntry(tlbe.vpn).used = true;
+    tlbe.used = false;
+    Machine.processor().writeTLBEntry(slot, tlbe);
+    return true;
+  }
+
+  /**
+   * Return <tt>true</tt> if the page the specified entry maps has been
+   * written through it.
+   */
+  protected boolean isDirty(int slot) {
+    return Machine.processor().readTLBEntry(slot).dirty;
+  }
+
+  /** The number of TLB entries. */
+  protected int tlbSize;
+}
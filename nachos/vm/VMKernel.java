@@ -1,11 +1,14 @@
 package nachos.vm;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.zip.CRC32;
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
-import java.util.LinkedList;
-import java.util.HashMap;
 
 /**
  * A kernel that can support multiple demand-paging user processes.
@@ -29,20 +32,93 @@ public class VMKernel extends UserKernel {
     for(int i = 0; i < Machine.processor().getNumPhysPages(); i++) {
       invTable[i] = new PhysicalPage();
     }
-    swapFile = ThreadedKernel.fileSystem.open("swap.nachos", true);
+
+    // pages compressing to at most maxCompressedPageBytes are kept in up
+    // to compressedSwapBytes of host memory instead of the swap file;
+    // 0 disables the cache
+    int compressedSwapBytes =
+      Config.getInteger("VMKernel.compressedSwapBytes", 32768);
+    CompressedPageCache cache = null;
+    if(compressedSwapBytes > 0)
+      cache = new CompressedPageCache(compressedSwapBytes,
+        Config.getInteger("VMKernel.maxCompressedPageBytes", pageSize/2));
+
+    // swap file grows in extents on demand up to the configured limit; once
+    // it is full, dirty pages stay resident, and a process is killed if it
+    // faults with fewer than two clean frames left to reuse
+    swapSpace = new SwapSpace(
+      ThreadedKernel.fileSystem.open(swapFileName, true),
+      Config.getInteger("VMKernel.swapExtentPages", 64),
+      Config.getInteger("VMKernel.maxSwapPages", 4096), cache);
 
     pinLock = new Lock();
-    swapLock = new Lock();
-    swapFull = new Condition(swapLock);
     unpinnedPage = new Condition(pinLock);
-    
-    // initialize linkedlist with 16 page numbers
-    freeSwapPages = new LinkedList<Integer>();
-    for(int i = 0; i < 16; i++) {
-      freeSwapPages.add((Integer) i);
+
+    replacementPolicy = (ReplacementPolicy) Lib.constructObject(
+      Config.getString("VMKernel.replacementPolicy",
+        "nachos.vm.ClockReplacement"));
+    tlbPolicy = (TLBReplacementPolicy) Lib.constructObject(
+      Config.getString("VMKernel.tlbReplacementPolicy",
+        "nachos.vm.LRUTLBReplacement"));
+
+    // page-out daemon keeps the free list between the two watermarks
+    int numPhysPages = Machine.processor().getNumPhysPages();
+    freeLowWatermark = Config.getInteger("VMKernel.freeLowWatermark",
+      Math.max(1, numPhysPages/8));
+    freeHighWatermark = Config.getInteger("VMKernel.freeHighWatermark",
+      Math.max(freeLowWatermark + 1, numPhysPages/4));
+    Lib.assertTrue(freeLowWatermark < freeHighWatermark &&
+      freeHighWatermark <= numPhysPages);
+
+    // largest number of swap pages moved by one read or write
+    swapClusterPages = Config.getInteger("VMKernel.swapClusterPages", 8);
+    swapInBuffer = new byte[swapClusterPages*pageSize];
+
+    // most pages mapped ahead of a sequential fault; 0 disables
+    maxPrefetchPages = Config.getInteger("VMKernel.maxPrefetchPages", 4);
+
+    // a process's working set is the pages it used in the last
+    // workingSetWindow ticks; its resident set is kept between the limits
+    workingSetWindow = Config.getInteger("VMKernel.workingSetWindow", 10000);
+    minResidentPages = Config.getInteger("VMKernel.minResidentPages", 0);
+    maxResidentPages = Config.getInteger("VMKernel.maxResidentPages",
+      numPhysPages);
+    Lib.assertTrue(workingSetWindow > 0 &&
+      minResidentPages < maxResidentPages && maxResidentPages > 0);
+
+    // load control suspends a process when faults that read a page back
+    // from swap, per 100000 ticks over each loadControlInterval, exceed
+    // maxFaultRate, and readmits one once they fall to minFaultRate
+    loadControlInterval = Config.getInteger("VMKernel.loadControlInterval",
+      20000);
+    maxFaultRate = Config.getInteger("VMKernel.maxFaultRate", 15);
+    minFaultRate = Config.getInteger("VMKernel.minFaultRate", 5);
+    Lib.assertTrue(loadControlInterval > 0 && minFaultRate < maxFaultRate);
+
+    // the merge scanner checksums mergeScanPages frames every
+    // mergeInterval ticks; an interval of 0 disables it
+    mergeInterval = Config.getInteger("VMKernel.mergeInterval", 50000);
+    mergeScanPages = Math.min(numPhysPages,
+      Config.getInteger("VMKernel.mergeScanPages", 32));
+    Lib.assertTrue(mergeInterval >= 0 && mergeScanPages > 0);
+
+    pageOutNeeded = new Condition(memoryLock);
+    frameFreed = new Condition(memoryLock);
+    readmitted = new Condition(memoryLock);
+    loadControlNeeded = new Condition(memoryLock);
+    mergeNeeded = new Condition(memoryLock);
+
+    new KThread(new Runnable() {
+      public void run() { pageOutDaemon(); }
+    }).setName("page-out daemon").fork();
+    new KThread(new Runnable() {
+      public void run() { loadControl(); }
+    }).setName("load control").fork();
+    if(mergeInterval > 0) {
+      new KThread(new Runnable() {
+        public void run() { mergeScanner(); }
+      }).setName("merge scanner").fork();
     }
-    vpnSwapMap = new HashMap<Integer, Integer>();
-    spnProcMap = new HashMap<Integer, UserProcess>();
   }
 
   /**
@@ -59,14 +135,1011 @@ public class VMKernel extends UserKernel {
     super.run();
   }
 
+  /**
+   * Takes a frame off the free list, or evicts one chosen by the
+   * replacement policy if the list is empty. A process already holding
+   * its maximum resident set replaces one of its own pages instead.
+   * Sleeps until a frame is freed or unpinned if every frame is pinned or
+   * being paged out. Once swap is full only clean pages can be evicted, and
+   * it fails if fewer than two are left, too few to hold both the page of
+   * an instruction and the page it loads or stores. Wakes the
+   * page-out daemon once the free list drops below the low watermark.
+   * Called with the memory lock held.
+   *
+   * @param proc the process the frame is for, which need not be the
+   *             current one.
+   * @return the ppn of a frame that no process maps, or -1 if memory and
+   *         swap are both exhausted.
+   */
+  public static int getFrame(VMProcess proc) {
+    Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+    int ppn;
+    while(true) {
+      if(proc.residentPages >= maxResidentPages) {
+        ppn = selectVictim(ownFrames, proc);
+        if(ppn != -1 && evictFrame(ppn)) {
+          localReplacements++;
+          break;
+        }
+      }
+
+      if(!freePages.isEmpty()) {
+        ppn = freePages.allocate();
+        break;
+      }
+
+      if(swapSpace.getNumAvailable() == 0 && numReclaimableFrames() < 2) {
+        swapExhaustedFaults++;
+        return -1;
+      }
+
+      ppn = selectVictim();
+      if(ppn != -1 && evictFrame(ppn))
+        break;
+
+      // with swap full, only a frame being unpinned or paged out can help
+      if(ppn == -1 && swapSpace.getNumAvailable() == 0 &&
+          !framesInTransit()) {
+        swapExhaustedFaults++;
+        return -1;
+      }
+
+      frameWaiters++;
+      frameFreed.sleep();
+      frameWaiters--;
+    }
+
+    if(freePages.size() < freeLowWatermark)
+      pageOutNeeded.wake();
+
+    return ppn;
+  }
+
+  /**
+   * Asks the replacement policy for a victim, first among processes
+   * holding more frames than their working set, then among any processes
+   * above their minimum resident set, and finally among all frames.
+   * Returns -1 if every frame is pinned or being paged out.
+   */
+  private static int selectVictim() {
+    int ppn = selectVictim(outsideWorkingSets, null);
+    if(ppn != -1) {
+      workingSetSteals++;
+      return ppn;
+    }
+
+    ppn = selectVictim(aboveMinimum, null);
+    if(ppn == -1)
+      ppn = replacementPolicy.selectVictim();
+    return ppn;
+  }
+
+  private static int selectVictim(int filter, VMProcess owner) {
+    // a search clears used bits and ages frames, so only search if some
+    // frame may pass the filter
+    if(mappedFrames - pinnedFrames - framesPagingOut <= 0)
+      return -1;
+    if(filter == aboveMinimum && processesAboveMinimum == 0)
+      return -1;
+    if(filter == outsideWorkingSets && processesOutsideWorkingSets == 0)
+      return -1;
+    if(filter == ownFrames && owner.residentPages == 0)
+      return -1;
+
+    victimFilter = filter;
+    victimOwner = owner;
+    int ppn = replacementPolicy.selectVictim();
+    victimFilter = anyFrame;
+    victimOwner = null;
+    return ppn;
+  }
+
+  /**
+   * Returns true if some frame is pinned or being paged out, and so will
+   * become available without any page being evicted.
+   */
+  private static boolean framesInTransit() {
+    return pinnedFrames > 0 || framesPagingOut > 0;
+  }
+
+  /**
+   * Returns the number of frames that can be reused without writing to
+   * swap: those holding clean pages, and those pinned or being paged out.
+   */
+  private static int numReclaimableFrames() {
+    int count = 0;
+    for(int i = 0; i < invTable.length; i++) {
+      if(invTable[i].proc == null || invTable[i].pinCount > 0 ||
+          invTable[i].pagingOut || !needsSwap(i))
+        count++;
+    }
+    return count;
+  }
+
+  /**
+   * Returns true if evicting frame ppn would have to write it to swap.
+   */
+  private static boolean needsSwap(int ppn) {
+    PhysicalPage page = invTable[ppn];
+    if(page.proc.needsSwap(page.vpn))
+      return true;
+
+    for(Iterator i = page.sharers.iterator(); i.hasNext(); ) {
+      Mapping m = (Mapping) i.next();
+      if(m.proc.needsSwap(m.vpn))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns true if the current victim search must pass over frame ppn
+   * because of the resident set of the process that owns it, or because
+   * it is dirty and swap is full.
+   */
+  public static boolean isShielded(int ppn) {
+    VMProcess owner = invTable[ppn].proc;
+    if(owner == null)
+      return false;
+    if(swapSpace.getNumAvailable() == 0 && needsSwap(ppn))
+      return true;
+    if(victimFilter == anyFrame)
+      return false;
+    if(victimFilter == ownFrames)
+      return owner != victimOwner;
+
+    if(owner.residentPages <= minResidentPages)
+      return true;
+    return victimFilter == outsideWorkingSets &&
+      owner.residentPages <= owner.workingSetSize;
+  }
+
+  /**
+   * Adds delta to the number of frames the specified process owns,
+   * keeping count of the processes above their minimum resident set and
+   * above their working set. Called with the memory lock held.
+   */
+  public static void addResidentPages(VMProcess proc, int delta) {
+    countResidentSet(proc, -1);
+    proc.residentPages += delta;
+    countResidentSet(proc, 1);
+  }
+
+  private static void countResidentSet(VMProcess proc, int sign) {
+    if(proc.residentPages <= minResidentPages)
+      return;
+    processesAboveMinimum += sign;
+    if(proc.residentPages > proc.workingSetSize)
+      processesOutsideWorkingSets += sign;
+  }
+
+  /**
+   * Updates the working set estimate of the specified process. Every
+   * frame it owns whose used bit is set is stamped with the current time,
+   * and its working set is the frames stamped within the last
+   * <tt>workingSetWindow</tt> ticks. Used bits are moved into the frame
+   * so the sample does not hide references from the replacement policy.
+   * Only the process's own pages are visited. Samples at most four times
+   * per window. Called with the memory lock held.
+   */
+  public static void sampleWorkingSet(VMProcess proc) {
+    long now = Machine.timer().getTime();
+    if(now - proc.lastWorkingSetSample < workingSetWindow/4)
+      return;
+    proc.lastWorkingSetSample = now;
+
+    if(tlbProcess == proc)
+      proc.syncEntries(false);
+
+    int size = 0;
+    for(int vpn = proc.pages.nextEntry(0); vpn != -1;
+        vpn = proc.pages.nextEntry(vpn + 1)) {
+      // the ppn may be stale, so the frame must still be owned by this
+      // page; it still is while the page is being written out
+      int ppn = proc.pages.getEntry(vpn).ppn;
+      if(ppn < 0 || invTable[ppn].proc != proc || invTable[ppn].vpn != vpn)
+        continue;
+      PhysicalPage page = invTable[ppn];
+
+      TranslationEntry pte = ownerEntry(ppn);
+      if(pte.used) {
+        page.lastUsed = now;
+        page.referenced = true;
+        pte.used = false;
+      }
+      if(now - page.lastUsed < workingSetWindow)
+        size++;
+    }
+    countResidentSet(proc, -1);
+    proc.workingSetSize = size;
+    countResidentSet(proc, 1);
+  }
+
+  /**
+   * Called by a process about to take a page fault from user mode, where
+   * it holds no pins. Measures the fault rate once per interval, and
+   * suspends this process if load control chose it or if swap is full and
+   * the faulting processes would only take clean pages from each other.
+   * Called with the memory lock held.
+   */
+  public static void controlLoad(VMProcess proc) {
+    if(!proc.admitted) {
+      proc.admitted = true;
+      activeProcesses.add(proc);
+      mergeNeeded.wake();
+    }
+    proc.lastPageFault = Machine.timer().getTime();
+
+    measureLoad();
+    if(proc.suspendRequested || swapThrashing())
+      suspend(proc);
+  }
+
+  /**
+   * Returns true if swap is full and the frames that can still be reused
+   * are too few for every process faulting this interval to hold two,
+   * the page of an instruction and the page it loads or stores.
+   */
+  private static boolean swapThrashing() {
+    if(swapSpace.getNumAvailable() > 0)
+      return false;
+
+    long now = Machine.timer().getTime();
+    int faulting = 0;
+    for(Iterator i = activeProcesses.iterator(); i.hasNext(); ) {
+      VMProcess proc = (VMProcess) i.next();
+      if(now - proc.lastPageFault < loadControlInterval)
+        faulting++;
+    }
+    return faulting > 1 && numReclaimableFrames() < 2*faulting;
+  }
+
+  /**
+   * Takes the rate of faults from swap over the interval just ended. While it is above
+   * <tt>maxFaultRate</tt> and at least two processes are faulting, the
+   * faulting process admitted last is asked to suspend itself at its next
+   * fault. Once it falls to <tt>minFaultRate</tt>, or no process is left
+   * to fault, the process suspended longest is readmitted. Called with the
+   * memory lock held.
+   */
+  private static void measureLoad() {
+    long now = Machine.timer().getTime();
+    if(now - lastLoadSample < loadControlInterval)
+      return;
+
+    faultRate = (int) ((swapFaults - lastLoadFaults)*100000L /
+      (now - lastLoadSample));
+    lastLoadSample = now;
+    lastLoadFaults = swapFaults;
+
+    VMProcess victim = null;
+    int faulting = 0;
+    for(Iterator i = activeProcesses.iterator(); i.hasNext(); ) {
+      VMProcess proc = (VMProcess) i.next();
+      if(now - proc.lastPageFault < loadControlInterval) {
+        faulting++;
+        victim = proc;
+      }
+    }
+
+    if(faultRate > maxFaultRate && faulting > 1) {
+      if(!victim.suspendRequested)
+        Lib.debug(dbgVM, "load control: " + faultRate
+          + " faults per 100000 ticks, suspending process "
+          + victim.processID());
+      victim.suspendRequested = true;
+    }
+    else if((faultRate <= minFaultRate || faulting == 0) &&
+        !suspendedProcesses.isEmpty()) {
+      readmit();
+    }
+  }
+
+  /**
+   * Suspends the current process, which load control chose to relieve
+   * memory. Its frames are freed, writing dirty pages to swap, and it
+   * sleeps until readmitted. Frames shared with other processes, pinned,
+   * or being paged out are left alone, as are dirty pages once swap is
+   * full. Called with the memory lock held.
+   */
+  private static void suspend(VMProcess proc) {
+    proc.suspendRequested = false;
+    proc.admitted = false;
+    activeProcesses.remove(proc);
+    suspendedProcesses.add(proc);
+    processesSuspended++;
+
+    if(tlbProcess == proc)
+      proc.syncEntries(false);
+
+    for(int ppn = 0; ppn < invTable.length; ppn++) {
+      PhysicalPage page = invTable[ppn];
+      if(page.proc != proc || !page.sharers.isEmpty() ||
+          page.pinCount > 0 || page.pagingOut)
+        continue;
+
+      // dirty pages stay if swap is full
+      if(!evictFrame(ppn))
+        continue;
+      freePages.free(ppn);
+      suspendedPages++;
+    }
+    frameFreed.wakeAll();
+    loadControlNeeded.wake();
+
+    while(!proc.admitted)
+      readmitted.sleep();
+  }
+
+  /**
+   * Readmits the process that has been suspended longest. Called with the
+   * memory lock held.
+   */
+  private static void readmit() {
+    VMProcess proc = (VMProcess) suspendedProcesses.removeFirst();
+    Lib.debug(dbgVM, "load control: " + faultRate
+      + " faults per 100000 ticks, readmitting process " + proc.processID());
+
+    proc.lastPageFault = Machine.timer().getTime();
+    proc.admitted = true;
+    activeProcesses.add(proc);
+    readmitted.wakeAll();
+  }
+
+  /**
+   * Removes an exiting process from load control, readmitting a suspended
+   * process if no other is left running. Called with the memory lock held.
+   */
+  public static void processExited(VMProcess proc) {
+    activeProcesses.remove(proc);
+    if(activeProcesses.isEmpty() && !suspendedProcesses.isEmpty())
+      readmit();
+  }
+
+  /**
+   * Body of the load control thread. Faults drive the measurements while
+   * processes run, but a suspended process must be readmitted even if the
+   * others stop faulting, so while any process is suspended the load is
+   * also measured once per interval here.
+   */
+  private static void loadControl() {
+    memoryLock.acquire();
+    while(true) {
+      while(suspendedProcesses.isEmpty())
+        loadControlNeeded.sleep();
+
+      memoryLock.release();
+      ThreadedKernel.alarm.waitUntil(loadControlInterval);
+      memoryLock.acquire();
+
+      measureLoad();
+    }
+  }
+
+  /**
+   * Body of the same-page merging scanner. Every <tt>mergeInterval</tt>
+   * ticks, checksums the next <tt>mergeScanPages</tt> frames. A frame whose
+   * checksum is unchanged since the scanner last saw it is quiescent, and
+   * is merged into a quiescent frame seen earlier in the same sweep if
+   * their contents are identical. Checksums only find candidates; frames
+   * are compared byte for byte before merging. Sleeps while fewer than
+   * two processes are running, since only separate processes are likely
+   * to hold identical pages.
+   */
+  private static void mergeScanner() {
+    CRC32 crc = new CRC32();
+    byte[] memory = Machine.processor().getMemory();
+    int hand = 0;
+
+    while(true) {
+      memoryLock.acquire();
+      while(activeProcesses.size() + suspendedProcesses.size() < 2)
+        mergeNeeded.sleep();
+      memoryLock.release();
+
+      ThreadedKernel.alarm.waitUntil(mergeInterval);
+      memoryLock.acquire();
+
+      for(int n = 0; n < mergeScanPages; n++) {
+        int ppn = hand;
+        hand = (hand + 1) % invTable.length;
+        // each sweep starts over, so frames freed since are forgotten
+        if(ppn == 0)
+          quiescentFrames.clear();
+
+        PhysicalPage page = invTable[ppn];
+        if(!isMergeable(ppn)) {
+          page.checksum = -1;
+          continue;
+        }
+
+        crc.reset();
+        crc.update(memory, ppn*pageSize, pageSize);
+        long sum = crc.getValue();
+        mergeScans++;
+        if(page.checksum != sum) {
+          page.checksum = sum;
+          continue;
+        }
+
+        Long key = new Long(sum);
+        Integer match = (Integer) quiescentFrames.get(key);
+        int target = (match == null) ? -1 : match.intValue();
+        if(target != -1 && target != ppn && isMergeable(target) &&
+            invTable[target].checksum == sum && sameContents(ppn, target))
+          mergeFrame(ppn, target);
+        else
+          quiescentFrames.put(key, new Integer(ppn));
+      }
+
+      memoryLock.release();
+    }
+  }
+
+  /**
+   * Returns true if frame ppn may be merged: it is in use, not pinned,
+   * not being paged out or read ahead, and every page mapping it is
+   * copied on write.
+   */
+  private static boolean isMergeable(int ppn) {
+    PhysicalPage page = invTable[ppn];
+    if(page.proc == null || page.pinCount > 0 || page.pagingOut ||
+        page.text != null || page.prefetched)
+      return false;
+
+    if(!page.proc.isMergeable(page.vpn))
+      return false;
+    for(Iterator i = page.sharers.iterator(); i.hasNext(); ) {
+      Mapping m = (Mapping) i.next();
+      if(!m.proc.isMergeable(m.vpn))
+        return false;
+    }
+    return true;
+  }
+
+  private static boolean sameContents(int ppn1, int ppn2) {
+    byte[] memory = Machine.processor().getMemory();
+    for(int i = 0; i < pageSize; i++) {
+      if(memory[ppn1*pageSize + i] != memory[ppn2*pageSize + i])
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Moves every mapping of frame ppn to frame target, which holds the same
+   * contents, and frees ppn. Both frames' mappings become read-only, and
+   * whichever writes first gets its own copy again. Called with the memory
+   * lock held.
+   */
+  private static void mergeFrame(int ppn, int target) {
+    PhysicalPage page = invTable[ppn];
+    PhysicalPage targetPage = invTable[target];
+
+    targetPage.proc.shareFrame(targetPage.vpn, target);
+    for(Iterator i = targetPage.sharers.iterator(); i.hasNext(); ) {
+      Mapping m = (Mapping) i.next();
+      m.proc.shareFrame(m.vpn, target);
+    }
+
+    LinkedList moved = new LinkedList(page.sharers);
+    moved.addFirst(new Mapping(page.proc, page.vpn));
+    forgetMappings(ppn);
+    for(Iterator i = moved.iterator(); i.hasNext(); ) {
+      Mapping m = (Mapping) i.next();
+      m.proc.shareFrame(m.vpn, target);
+      addSharer(target, m.proc, m.vpn);
+    }
+
+    Lib.debug(dbgVM, "merged ppn " + ppn + " into ppn " + target);
+    page.checksum = -1;
+    freePages.free(ppn);
+    mergedFrames++;
+    frameFreed.wakeAll();
+  }
+
+  /**
+   * Evicts the page held in frame ppn, writing it to swap first if needed.
+   * Leaves the frame alone if it needs a swap page and none is left.
+   * Called with the memory lock held.
+   * Returns false if the frame was not evicted.
+   */
+  private static boolean evictFrame(int ppn) {
+    PhysicalPage page = invTable[ppn];
+
+    if(page.proc != null) {
+      if(swapSpace.getNumAvailable() == 0 && needsSwap(ppn))
+        return false;
+
+      Lib.debug(dbgVM, "evicting vpn " + page.vpn + " of process "
+        + page.proc.processID() + " from ppn " + ppn);
+
+      if(unmapFrame(ppn)) {
+        int spn = swapSpace.allocate();
+        swapOut(ppn, spn);
+      }
+    }
+
+    forgetMappings(ppn);
+    return true;
+  }
+
+  /**
+   * Drops every process's claim on frame ppn once its page has left
+   * memory, so the frame can be reused. Called with the memory lock held.
+   */
+  private static void forgetMappings(int ppn) {
+    PhysicalPage page = invTable[ppn];
+    if(page.proc == null)
+      return;
+
+    addResidentPages(page.proc, -1);
+    page.sharers.clear();
+    page.proc = null;
+    mappedFrames--;
+  }
+
+  /**
+   * Removes every mapping of frame ppn. A shared text frame leaves the
+   * text cache, and the next process to need the page loads it again.
+   * The frame still records its mappings so that the swap page it is
+   * written to can be given to each of them. Called with the memory lock
+   * held.
+   * Returns true if the page must be written to swap before the frame
+   * can be reused.
+   */
+  private static boolean unmapFrame(int ppn) {
+    PhysicalPage page = invTable[ppn];
+    boolean dirty = page.proc.unmapFrame(page.vpn, ppn);
+
+    for(Iterator i = page.sharers.iterator(); i.hasNext(); ) {
+      Mapping m = (Mapping) i.next();
+      if(m.proc.unmapFrame(m.vpn, ppn))
+        dirty = true;
+    }
+
+    if(page.text != null) {
+      page.text.frames[page.vpn] = -1;
+      page.text = null;
+    }
+
+    return dirty;
+  }
+
+  /**
+   * Returns the shared text of the executable with the specified identity,
+   * creating it if no running process uses that executable. Each call must
+   * be matched by a call to <tt>detachText()</tt>. Called with the memory
+   * lock held.
+   *
+   * @param key identifies the executable file and its layout.
+   * @param numPages the number of pages in the executable's address space.
+   */
+  public static SharedText attachText(String key, int numPages) {
+    SharedText text = (SharedText) sharedText.get(key);
+    if(text == null) {
+      text = new SharedText(key, numPages);
+      sharedText.put(key, text);
+    }
+    text.users++;
+    return text;
+  }
+
+  /**
+   * Drops a process's use of shared text, forgetting the executable once
+   * no process uses it. Called with the memory lock held.
+   */
+  public static void detachText(SharedText text) {
+    if(--text.users == 0)
+      sharedText.remove(text.key);
+  }
+
+  /**
+   * Maps frame ppn, already mapped by its owner, into vpn of another
+   * process. Called with the memory lock held.
+   */
+  public static void addSharer(int ppn, VMProcess proc, int vpn) {
+    invTable[ppn].sharers.add(new Mapping(proc, vpn));
+    sharedMappings++;
+  }
+
+  /**
+   * Removes the mapping of frame ppn at vpn of the specified process. A
+   * merged frame may be mapped at several vpns of one process. If the
+   * owner leaves a shared frame, one of the remaining sharers becomes the
+   * owner. Called with the memory lock held.
+   * Returns true if no process maps the frame any longer.
+   */
+  public static boolean removeMapping(int ppn, VMProcess proc, int vpn) {
+    PhysicalPage page = invTable[ppn];
+
+    for(Iterator i = page.sharers.iterator(); i.hasNext(); ) {
+      Mapping m = (Mapping) i.next();
+      if(m.proc == proc && m.vpn == vpn) {
+        i.remove();
+        return false;
+      }
+    }
+
+    Lib.assertTrue(page.proc == proc && page.vpn == vpn);
+    addResidentPages(proc, -1);
+    if(page.sharers.isEmpty()) {
+      if(page.text != null) {
+        page.text.frames[page.vpn] = -1;
+        page.text = null;
+      }
+      page.proc = null;
+      mappedFrames--;
+      return true;
+    }
+
+    Mapping m = (Mapping) page.sharers.removeFirst();
+    page.proc = m.proc;
+    page.vpn = m.vpn;
+    addResidentPages(page.proc, 1);
+    return false;
+  }
+
+  /**
+   * Writes frame ppn to swap page spn and records spn in the swap map of
+   * every process that mapped the frame. The swap page is freed if the
+   * write fails.
+   */
+  private static void swapOut(int ppn, int spn) {
+    if(swapSpace.write(spn, Machine.processor().getMemory(), ppn*pageSize)
+        >= 0) {
+      assignSwap(ppn, spn);
+    }
+    else {
+      swapSpace.free(spn);
+    }
+  }
+
+  /**
+   * Records swap page spn, just written from frame ppn, in the swap map of
+   * every process that mapped the frame. Each sharer holds its own
+   * reference to the swap page.
+   */
+  private static void assignSwap(int ppn, int spn) {
+    PhysicalPage page = invTable[ppn];
+    page.proc.pages.setSwapPage(page.vpn, spn);
+
+    for(Iterator i = page.sharers.iterator(); i.hasNext(); ) {
+      Mapping m = (Mapping) i.next();
+      swapSpace.share(spn);
+      m.proc.pages.setSwapPage(m.vpn, spn);
+    }
+  }
+
+  /**
+   * Body of the page-out daemon. Whenever the free list drops below the
+   * low watermark, evicts a batch of frames chosen by the replacement
+   * policy to bring it back up to the high watermark. Dirty pages are
+   * written to swap without holding the memory lock, so page faults that
+   * find a free frame do not wait for the writes.
+   */
+  private static void pageOutDaemon() {
+    int[] batch = new int[freeHighWatermark];
+    int[] dirty = new int[freeHighWatermark];
+    int[] dirtySpn = new int[freeHighWatermark];
+    byte[] buffer = new byte[swapClusterPages*pageSize];
+
+    memoryLock.acquire();
+    while(true) {
+      while(freePages.size() >= freeLowWatermark)
+        pageOutNeeded.sleep();
+
+      // choose the whole batch and unmap it while holding the lock, taking
+      // no more dirty pages than swap has room for; once swap is full, the
+      // clean pages still mapped are left for the running process. The
+      // frames that can be reclaimed are counted once per batch, since
+      // marking a clean page for page-out does not change the count
+      int count = 0, numDirty = 0, reclaimable = -1;
+      while(freePages.size() + count < freeHighWatermark) {
+        int ppn = selectVictim();
+        if(ppn == -1)
+          break;
+        if(numDirty == swapSpace.getNumAvailable()) {
+          if(needsSwap(ppn))
+            break;
+          if(reclaimable == -1)
+            reclaimable = numReclaimableFrames();
+          if(reclaimable - freePages.size() - count <= 2)
+            break;
+        }
+
+        PhysicalPage page = invTable[ppn];
+        page.pagingOut = true;
+        framesPagingOut++;
+        if(unmapFrame(ppn))
+          dirty[numDirty++] = ppn;
+        batch[count++] = ppn;
+      }
+
+      // every frame is pinned; wait for the next fault to try again
+      if(count == 0) {
+        pageOutNeeded.sleep();
+        continue;
+      }
+
+      // give each process's pages consecutive swap pages in vpn order, so
+      // they can be written together and later read back together
+      sortByOwner(dirty, numDirty);
+      int run = (numDirty > 1) ? swapSpace.allocate(numDirty) : -1;
+      for(int i = 0; i < numDirty; i++)
+        dirtySpn[i] = (run != -1) ? run + i : swapSpace.allocate();
+
+      memoryLock.release();
+      writeClusters(dirty, dirtySpn, numDirty, buffer);
+      memoryLock.acquire();
+
+      for(int i = 0; i < numDirty; i++) {
+        if(dirtySpn[i] != -1)
+          assignSwap(dirty[i], dirtySpn[i]);
+      }
+
+      for(int i = 0; i < count; i++) {
+        PhysicalPage page = invTable[batch[i]];
+        page.pagingOut = false;
+        framesPagingOut--;
+        forgetMappings(batch[i]);
+      }
+      freePages.free(batch, count);
+      Lib.debug(dbgVM, "page-out daemon freed " + count + " frames, wrote "
+        + numDirty);
+
+      frameFreed.wakeAll();
+    }
+  }
+
+  /**
+   * Sorts frames by owning process, then by vpn.
+   */
+  private static void sortByOwner(int[] frames, int count) {
+    for(int i = 1; i < count; i++) {
+      int ppn = frames[i];
+      int j = i;
+      while(j > 0 && compareOwner(frames[j-1], ppn) > 0) {
+        frames[j] = frames[j-1];
+        j--;
+      }
+      frames[j] = ppn;
+    }
+  }
+
+  private static int compareOwner(int ppn1, int ppn2) {
+    PhysicalPage page1 = invTable[ppn1], page2 = invTable[ppn2];
+    if(page1.proc != page2.proc)
+      return page1.proc.processID() - page2.proc.processID();
+    return page1.vpn - page2.vpn;
+  }
+
+  /**
+   * Writes each frame to its swap page, issuing one write for every run of
+   * consecutive swap pages up to <tt>swapClusterPages</tt> long. The swap
+   * pages of a failed write are freed and replaced with -1 in
+   * <i>spns</i>.
+   */
+  private static void writeClusters(int[] frames, int[] spns, int count,
+      byte[] buffer) {
+    byte[] memory = Machine.processor().getMemory();
+
+    for(int i = 0; i < count; ) {
+      int n = 1;
+      while(i + n < count && n < swapClusterPages &&
+          spns[i+n] == spns[i] + n)
+        n++;
+
+      for(int k = 0; k < n; k++) {
+        System.arraycopy(memory, frames[i+k]*pageSize, buffer, k*pageSize,
+          pageSize);
+      }
+
+      if(swapSpace.write(spns[i], buffer, 0, n) < 0) {
+        swapSpace.free(spns[i], n);
+        for(int k = 0; k < n; k++)
+          spns[i+k] = -1;
+      }
+      i += n;
+    }
+  }
+
+  /**
+   * Sleeps until the page-out daemon has finished writing vpn of the
+   * specified process. Called with the memory lock held.
+   */
+  public static void waitForPageOut(VMProcess proc, int vpn) {
+    while(isPagingOut(proc, vpn))
+      frameFreed.sleep();
+  }
+
+  /**
+   * Returns true if the page-out daemon is writing vpn of the specified
+   * process.
+   */
+  public static boolean isPagingOut(VMProcess proc, int vpn) {
+    int ppn = proc.getEntry(vpn).ppn;
+    if(ppn < 0)
+      return false;
+
+    // the frame keeps its mappings until the write finishes, so a stale ppn
+    // is only followed if the frame still records this page
+    PhysicalPage page = invTable[ppn];
+    return page.pagingOut && page.maps(proc, vpn);
+  }
+
+  /**
+   * Sleeps until the page-out daemon has finished writing every page of
+   * the specified process. Called with the memory lock held.
+   */
+  public static void waitForPageOut(VMProcess proc) {
+    for(int ppn = 0; ppn < invTable.length; ppn++) {
+      PhysicalPage page = invTable[ppn];
+      while(page.pagingOut && page.maps(proc))
+        frameFreed.sleep();
+    }
+  }
+
+  /**
+   * Pins frame ppn so it cannot be evicted, unless doing so would leave
+   * every frame pinned. A frame may be pinned more than once, and stays
+   * pinned until unpinned as many times. Called with interrupts disabled,
+   * after checking that the page being pinned is still in ppn.
+   *
+   * @return <tt>false</tt> if the frame was not pinned because every other
+   * frame is already pinned; the caller should <tt>waitForUnpin()</tt> and
+   * try again.
+   */
+  public static boolean pinFrame(int ppn) {
+    Lib.assertTrue(Machine.interrupt().disabled());
+
+    PhysicalPage page = invTable[ppn];
+    if(page.pinCount == 0) {
+      if(pinnedFrames == invTable.length - 1)
+        return false;
+      pinnedFrames++;
+    }
+    page.pinCount++;
+    return true;
+  }
+
+  /**
+   * Drops one pin of frame ppn. Once the frame is no longer pinned, wakes
+   * any thread waiting to pin a frame or to evict one.
+   */
+  public static void unpinFrame(int ppn) {
+    boolean intStatus = Machine.interrupt().disable();
+    boolean unpinned = dropPin(ppn);
+    Machine.interrupt().restore(intStatus);
+
+    if(unpinned)
+      wakePinWaiters();
+  }
+
+  /**
+   * Drops one pin of each of the first count frames in ppns, waking
+   * waiters at most once.
+   */
+  public static void unpinFrames(int[] ppns, int count) {
+    boolean intStatus = Machine.interrupt().disable();
+    boolean unpinned = false;
+    for(int i = 0; i < count; i++)
+      unpinned |= dropPin(ppns[i]);
+    Machine.interrupt().restore(intStatus);
+
+    if(unpinned)
+      wakePinWaiters();
+  }
+
+  private static boolean dropPin(int ppn) {
+    PhysicalPage page = invTable[ppn];
+    Lib.assertTrue(page.pinCount > 0);
+    if(--page.pinCount > 0)
+      return false;
+    pinnedFrames--;
+    return true;
+  }
+
+  private static void wakePinWaiters() {
+    if(pinWaiters > 0) {
+      pinLock.acquire();
+      unpinnedPage.wakeAll();
+      pinLock.release();
+    }
+
+    // a page fault may be waiting for any frame to become evictable
+    if(frameWaiters > 0) {
+      boolean held = memoryLock.isHeldByCurrentThread();
+      if(!held)
+        memoryLock.acquire();
+      frameFreed.wakeAll();
+      if(!held)
+        memoryLock.release();
+    }
+  }
+
+  /**
+   * Sleeps until a frame is unpinned, if all but one frame are pinned.
+   */
+  public static void waitForUnpin() {
+    pinLock.acquire();
+    pinWaiters++;
+    while(pinnedFrames >= invTable.length - 1)
+      unpinnedPage.sleep();
+    pinWaiters--;
+    pinLock.release();
+  }
+
+  /**
+   * Returns the page table entry that maps the specified frame, taken from
+   * the page table of the process that owns the frame. The used bits of
+   * any other processes sharing the frame are folded into it. Returns null
+   * if the frame is not in use.
+   */
+  public static TranslationEntry ownerEntry(int ppn) {
+    PhysicalPage page = invTable[ppn];
+    if(page.proc == null)
+      return null;
+
+    TranslationEntry pte = page.proc.getEntry(page.vpn);
+    if(page.referenced) {
+      pte.used = true;
+      page.referenced = false;
+    }
+    for(Iterator i = page.sharers.iterator(); i.hasNext(); ) {
+      Mapping m = (Mapping) i.next();
+      TranslationEntry entry = m.proc.getEntry(m.vpn);
+      if(entry.used) {
+        pte.used = true;
+        entry.used = false;
+      }
+    }
+    return pte;
+  }
+
   /**
    * Terminate this kernel. Never returns.
    */
   public void terminate() {
-    super.terminate();
+    Lib.debug(dbgVM, "prefetch: " + prefetchedPages + " pages, "
+      + prefetchHits + " hits, " + prefetchMisses + " misses");
+    Lib.debug(dbgVM, "swap: " + swapSpace.numReads + " reads of "
+      + swapSpace.numPagesRead + " pages, " + swapSpace.numWrites
+      + " writes of " + swapSpace.numPagesWritten + " pages, "
+      + swapExhaustedFaults + " processes killed with swap full");
+    CompressedPageCache cache = swapSpace.getCache();
+    if(cache != null) {
+      Lib.debug(dbgVM, "compressed swap: " + cache.numStored
+        + " pages stored, " + cache.numRejected + " sent to the file, "
+        + cache.numHits + " read back, hit ratio "
+        + (cache.numHits * 100 / Math.max(1,
+          cache.numHits + swapSpace.numPagesRead))
+        + "%, compression ratio " + (cache.bytesIn * 10 /
+          Math.max(1, cache.bytesOut)) / 10.0 + ", "
+        + cache.getNumBytes() + " bytes held");
+    }
+    Lib.debug(dbgVM, "zero-filled pages: " + zeroFilledPages);
+    Lib.debug(dbgVM, "TLB: " + tlbMisses + " misses, " + tlbEvictions
+      + " replacements by " + tlbPolicy.getClass().getName() + ", "
+      + (tlbMisses * 1000 / Math.max(1, Machine.timer().getTime()))
+      + " misses per 1000 ticks, " + tlbEntriesRestored
+      + " entries restored");
+    Lib.debug(dbgVM, "resident sets: " + localReplacements
+      + " pages replaced by their own process, " + workingSetSteals
+      + " taken from processes over their working set");
+    Lib.debug(dbgVM, "load control: " + pageFaults + " page faults, "
+      + swapFaults + " from swap, " + processesSuspended
+      + " suspensions freeing " + suspendedPages + " frames");
+    Lib.debug(dbgVM, "page merging: " + mergedFrames + " frames merged, "
+      + mergeScans + " frames checksummed");
+    Lib.debug(dbgVM, "sharing: " + sharedMappings + " shared mappings, "
+      + copyOnWriteCopies + " pages copied on write");
 
-    swapFile.close();
-    ThreadedKernel.fileSystem.remove("swap.nachos");
+    swapSpace.close();
+    ThreadedKernel.fileSystem.remove(swapFileName);
+
+    super.terminate();
   }
 
   // dummy variables to make javac smarter
@@ -76,28 +1149,197 @@ public class VMKernel extends UserKernel {
   // inverted page table; indexes are ppn
   public static PhysicalPage[] invTable;
 
-  // file with swap data
-  public static OpenFile swapFile;
+  // swap area and the file backing it
+  public static SwapSpace swapSpace;
+  private static final String swapFileName = "swap.nachos";
+
+  // largest swap transfer, and the buffer used to read clusters back in;
+  // the buffer is only used with the memory lock held
+  public static int swapClusterPages;
+  public static byte[] swapInBuffer;
+
+  // read-ahead window limit, and how many pages mapped ahead of use were
+  // used (hits) or evicted unused (misses)
+  public static int maxPrefetchPages;
+  public static int prefetchedPages = 0;
+  public static int prefetchHits = 0;
+  public static int prefetchMisses = 0;
+
+  // read-only executable pages loaded by one process and mapped by every
+  // other process running the same executable; keyed by SharedText.key
+  private static HashMap sharedText = new HashMap();
+  public static int sharedMappings = 0;
+
+  // pages copied when a process wrote to a frame it shared after fork()
+  public static int copyOnWriteCopies = 0;
+
+  // bss, stack and argument pages filled with zeros rather than read
+  public static int zeroFilledPages = 0;
+
+  // the process whose translations are loaded in the TLB. The TLB keeps
+  // them while kernel threads run, and they are set aside when another
+  // process runs
+  public static VMProcess tlbProcess = null;
+  public static int tlbEntriesRestored = 0;
+
+  // chooses TLB entries to replace, and how often it has been asked
+  public static TLBReplacementPolicy tlbPolicy;
+  public static int tlbMisses = 0;
+  public static int tlbEvictions = 0;
+
+  // chooses frames to evict when no frames are free
+  public static ReplacementPolicy replacementPolicy;
+
+  // working set window in ticks, and the resident set limits of each
+  // process, in frames it owns
+  public static int workingSetWindow;
+  public static int minResidentPages;
+  public static int maxResidentPages;
+  public static int localReplacements = 0;
+  public static int workingSetSteals = 0;
+
+  // faults that found neither a free frame nor room in swap, and killed
+  // the faulting process
+  public static int swapExhaustedFaults = 0;
+
+  // faults taken by the kernel, which with a TLB the processor does not
+  // count, and those that read a page back from swap. A process loading
+  // its pages for the first time is not thrashing, so load control
+  // measures the rate of the second once per loadControlInterval
+  public static int pageFaults = 0;
+  public static int swapFaults = 0;
+  public static int loadControlInterval;
+  public static int maxFaultRate;
+  public static int minFaultRate;
+  private static int faultRate = 0;
+  private static long lastLoadSample = 0;
+  private static int lastLoadFaults = 0;
+
+  // processes that have faulted, in the order they were admitted, and
+  // suspended processes in the order they were suspended. Suspended
+  // processes wait on readmitted, and the load control thread waits on
+  // loadControlNeeded while none are
+  private static LinkedList activeProcesses = new LinkedList();
+  private static LinkedList suspendedProcesses = new LinkedList();
+  private static Condition readmitted;
+  private static Condition loadControlNeeded;
+  public static int processesSuspended = 0;
+  public static int suspendedPages = 0;
+
+  // the merge scanner's period and batch size, and the quiescent frames
+  // of the current sweep, keyed by checksum
+  public static int mergeInterval;
+  public static int mergeScanPages;
+  private static HashMap quiescentFrames = new HashMap();
+  private static Condition mergeNeeded;
+  public static int mergedFrames = 0;
+  public static int mergeScans = 0;
+
+  // which frames the victim search in progress may choose
+  private static final int anyFrame = 0, aboveMinimum = 1,
+    outsideWorkingSets = 2, ownFrames = 3;
+  private static int victimFilter = anyFrame;
+  private static VMProcess victimOwner = null;
+
+  // page-out daemon runs when fewer than freeLowWatermark frames are
+  // free, and frees frames until freeHighWatermark are free
+  public static int freeLowWatermark;
+  public static int freeHighWatermark;
+  private static Condition pageOutNeeded;
+
+  // woken when frames are freed, unpinned, or finish paging out
+  public static Condition frameFreed;
+  public static int frameWaiters = 0;
+
+  private static final int pageSize = Processor.pageSize;
+
+  // frames with a pin count above zero; pinning stops one short of all
+  // of them, and pinners wait on unpinnedPage for one to be unpinned
+  public static int pinnedFrames = 0;
+  private static Condition unpinnedPage;
+  private static Lock pinLock;
+  private static int pinWaiters = 0;
 
-  // list of page numbers in swap file
-  public static LinkedList<Integer> freeSwapPages;
-  public static HashMap<Integer, UserProcess> spnProcMap;
-  public static HashMap<Integer, Integer> vpnSwapMap;
-  public static Condition unpinnedPage;
-  public static Condition swapFull;
-  public static Lock pinLock;
-  public static Lock swapLock;
-  public static int pinCounter = 0;
+  // frames some process maps, and frames being written out by the page-out
+  // daemon; with pinnedFrames, these tell whether any frame is evictable
+  public static int mappedFrames = 0;
+  private static int framesPagingOut = 0;
+
+  // processes holding more frames than the minimum resident set, and of
+  // those, the ones also holding more than their working set
+  private static int processesAboveMinimum = 0;
+  private static int processesOutsideWorkingSets = 0;
 
   // data structure for a physical page
   public class PhysicalPage
   {
     public int vpn;
-    public UserProcess proc;
-    public boolean pinned = false;
+    public VMProcess proc;
+    public int pinCount = 0;           // pins held by syscalls
+    public boolean pagingOut = false;  // being written out by the daemon
+    public boolean prefetched = false; // mapped ahead of use, not yet used
+    public SharedText text = null;     // set if a shared text page
+    public long lastUsed = 0;          // last working set sample it was used
+    public boolean referenced = false; // used bit taken by that sample
+    public long checksum = -1;         // contents when last scanned
+    public LinkedList sharers = new LinkedList(); // other Mappings
 
     public PhysicalPage()
     {
     }
+
+    // true if proc maps this frame at vpn
+    public boolean maps(VMProcess proc, int vpn)
+    {
+      if(this.proc == proc && this.vpn == vpn)
+        return true;
+      for(Iterator i = sharers.iterator(); i.hasNext(); ) {
+        Mapping m = (Mapping) i.next();
+        if(m.proc == proc && m.vpn == vpn)
+          return true;
+      }
+      return false;
+    }
+
+    // true if proc maps this frame at any vpn
+    public boolean maps(VMProcess proc)
+    {
+      if(this.proc == proc)
+        return true;
+      for(Iterator i = sharers.iterator(); i.hasNext(); ) {
+        if(((Mapping) i.next()).proc == proc)
+          return true;
+      }
+      return false;
+    }
+  }
+
+  // a page of a process that maps a frame it does not own
+  public static class Mapping
+  {
+    public VMProcess proc;
+    public int vpn;
+
+    public Mapping(VMProcess proc, int vpn)
+    {
+      this.proc = proc;
+      this.vpn = vpn;
+    }
+  }
+
+  // read-only pages of one executable; frames are indexed by vpn and
+  // hold -1 for pages not in memory
+  public static class SharedText
+  {
+    public String key;
+    public int[] frames;
+    public int users = 0;
+
+    public SharedText(String key, int numPages)
+    {
+      this.key = key;
+      frames = new int[numPages];
+      Arrays.fill(frames, -1);
+    }
   }
 }
\ No newline at end of file
@@ -1,6 +1,8 @@
 package nachos.vm;
 
 
+import java.io.EOFException;
+import java.util.Arrays;
 import java.util.Random;
 import nachos.machine.*;
 import nachos.threads.*;
@@ -18,44 +20,111 @@ public class VMProcess extends UserProcess {
     super();
   }
 
+  /**
+   * Execute the specified program with the specified arguments, recording
+   * the executable's name so its read-only pages can be shared.
+   */
+  public boolean execute(String name, String[] args) {
+    executableName = name;
+    return super.execute(name, args);
+  }
+
+  /**
+   * Initialize the processor's registers. A process created by
+   * <tt>fork()</tt> starts from its parent's registers instead of the
+   * program's entry point.
+   */
+  public void initRegisters() {
+    if(forkRegisters == null) {
+      super.initRegisters();
+      return;
+    }
+
+    for(int i = 0; i < Processor.numUserRegisters; i++)
+      Machine.processor().writeRegister(i, forkRegisters[i]);
+    forkRegisters = null;
+  }
+
   /**
    * Save the state of this process in preparation for a context switch.
-   * Called by <tt>UThread.saveState()</tt>.
+   * Called by <tt>UThread.saveState()</tt>. The TLB entries stay loaded,
+   * since the next thread to run may not be a user process; their bits are
+   * synced so the kernel sees them while this process is not running.
    */
   public void saveState() {
-    syncEntries(true); // sync TLB bits and invalidate entries
+    syncEntries(false);
   }
 
   /**
    * Restore the state of this process after a context switch. Called by
-   * <tt>UThread.restoreState()</tt>.
+   * <tt>UThread.restoreState()</tt>. The TLB has no address-space tags, so
+   * the kernel tracks which process its entries belong to. If they belong
+   * to another process, that process's entries are set aside and this
+   * process's entries from its last run are reloaded, skipping any whose
+   * pages were evicted in the meantime.
    */
   public void restoreState() {
+    VMProcess owner = VMKernel.tlbProcess;
+    if(owner == this)
+      return;
+
+    Processor processor = Machine.processor();
+    for(int i = 0; i < processor.getTLBSize(); i++) {
+      if(owner != null) {
+        TranslationEntry tlbe = processor.readTLBEntry(i);
+        owner.savedTLB[i] = tlbe.valid ? tlbe.vpn : -1;
+        if(tlbe.valid)
+          owner.pages.setTLBSlot(tlbe.vpn, -1);
+      }
+
+      int vpn = savedTLB[i];
+      if(vpn != -1 && pages.isValid(vpn)) {
+        processor.writeTLBEntry(i, pages.getEntry(vpn));
+        pages.setTLBSlot(vpn, i);
+        VMKernel.tlbPolicy.entryLoaded(i);
+        VMKernel.tlbEntriesRestored++;
+      }
+      else {
+        processor.writeTLBEntry(i, invalidEntry);
+      }
+    }
+    VMKernel.tlbProcess = this;
   }
 
   /**
    * Syncs bits of all valid TLB entries to page table.
    * Invalidates all TLB entries if invalidate = true
+   * Each entry is read once, and written back only if it changed. The
+   * processor copies entries on both read and write, so no further copies
+   * are made here.
    */
   public void syncEntries(boolean invalidate) {
-    // update page table
-    for(int i = 0; i < Machine.processor().getTLBSize(); i++) {
-      TranslationEntry tlbe = new TranslationEntry(Machine.processor().readTLBEntry(i));
-      TranslationEntry pte = pageTable[tlbe.vpn];
-
-      // sync all valid TLB entries 
-      if(tlbe.valid) {
-        pte.used = tlbe.used;
-        pte.dirty = tlbe.dirty;
-
-        if(invalidate)
-          tlbe.valid = false;
+    Processor processor = Machine.processor();
+
+    for(int i = 0; i < processor.getTLBSize(); i++) {
+      TranslationEntry tlbe = processor.readTLBEntry(i);
+      if(!tlbe.valid)
+        continue;
+
+      // entries now outlive context switches, so the used bit is moved
+      // rather than copied; the page table then sees references made
+      // since the last sync, not since the entry was loaded
+      TranslationEntry pte = pages.getEntry(tlbe.vpn);
+      pte.used |= tlbe.used;
+      pte.dirty |= tlbe.dirty;
+
+      if(!tlbe.used && !invalidate)
+        continue;
+
+      tlbe.used = false;
+      if(invalidate) {
+        tlbe.valid = false;
+        pages.setTLBSlot(tlbe.vpn, -1);
       }
-      Machine.processor().writeTLBEntry(i, tlbe);
+      processor.writeTLBEntry(i, tlbe);
     }
   }
 
-
   /**
    * Initializes page tables for this process so that the executable can be
    * demand-paged.
@@ -63,239 +132,409 @@ public class VMProcess extends UserProcess {
    * @return <tt>true</tt> if successful.
    */
   protected boolean loadSections() {
-    // initialize pageTable with invalid readOnly entries with ppn -1
-    pageTable = new TranslationEntry[numPages];
-    int count = 0;
-    while(count < numPages) {
-      pageTable[count] = new TranslationEntry(count, -1,
-          false, true, false, false);
-        count++;
+    // entries are created as pages are first used, so an address space
+    // costs nothing up front however large it is
+    pages = new PageTable();
+
+    // classify the executable's pages once, so faults need not search the
+    // sections; pages past them are stack, then one page of arguments
+    int coffPages = 0;
+    for(int s = 0; s < coff.getNumSections(); s++) {
+      CoffSection section = coff.getSection(s);
+      coffPages = Math.max(coffPages,
+        section.getFirstVPN() + section.getLength());
+    }
+    pageKind = new byte[coffPages];
+    Arrays.fill(pageKind, kindStack);
+    coffPage = new int[coffPages];
+    Arrays.fill(coffPage, -1);
+    for(int s = 0; s < coff.getNumSections(); s++) {
+      CoffSection section = coff.getSection(s);
+      byte kind = section.isReadOnly() ? kindText :
+        section.isInitialzed() ? kindData : kindBss;
+      for(int i = 0; i < section.getLength(); i++) {
+        pageKind[section.getFirstVPN() + i] = kind;
+        coffPage[section.getFirstVPN() + i] = (s << 16) | i;
+      }
     }
 
+    // read-only pages are shared with other processes running the same
+    // executable; the name alone could match an unrelated file of the
+    // same name, so the layout is part of the key
+    UserKernel.memoryLock.acquire();
+    text = VMKernel.attachText(executableName + "#" + numPages + "#"
+      + coff.getEntryPoint(), numPages);
+    UserKernel.memoryLock.release();
+
     return true;
   }
 
   /**
    * Release any resources allocated by <tt>loadSections()</tt>.
+   * Frees every swap page this process still holds, and returns the
+   * frames it owns to the free list in one call. Called with the memory
+   * lock held.
    */
   protected void unloadSections() {
-    super.unloadSections();
+    // swap pages still being written by the page-out daemon must not be
+    // handed to another process until the write lands
+    VMKernel.waitForPageOut(this);
+
+    if(VMKernel.tlbProcess == this) {
+      syncEntries(true);
+      VMKernel.tlbProcess = null;
+    }
+
+    pages.freeSwap(VMKernel.swapSpace);
+
+    // only frames this process owns can be left unmapped
+    int[] frames = new int[residentPages];
+    int count = 0;
+    for(int vpn = pages.nextEntry(0); vpn != -1;
+        vpn = pages.nextEntry(vpn + 1)) {
+      int ppn = releasePage(vpn);
+      if(ppn != -1)
+        frames[count++] = ppn;
+    }
+    UserKernel.freePages.free(frames, count);
+    VMKernel.detachText(text);
+    VMKernel.processExited(this);
+    VMKernel.frameFreed.wakeAll();
   }
 
-  protected int pinVirtualPage(int vpn, boolean isUserWrite) {
-    // input check
-    if (vpn < 0 || vpn >= pageTable.length)
+  /**
+   * Drops this process's mapping of vpn. Called with the memory lock held.
+   *
+   * @return the frame that held vpn if no process maps it any longer, for
+   *         the caller to free, or -1.
+   */
+  private int releasePage(int vpn) {
+    TranslationEntry pte = pages.getEntry(vpn);
+    if(!pte.valid)
       return -1;
-    TranslationEntry entry = pageTable[vpn];
-    if (!entry.valid || entry.vpn != vpn)
+    pte.valid = false;
+
+    // frames still mapped elsewhere stay in use
+    if(!VMKernel.removeMapping(pte.ppn, this, vpn))
       return -1;
 
-    // set dirty and used bits
-    if (isUserWrite) {
-      if (entry.readOnly)
-        return -1;
-      entry.dirty = true;
+    if(VMKernel.invTable[pte.ppn].prefetched) {
+      VMKernel.invTable[pte.ppn].prefetched = false;
+      VMKernel.prefetchMisses++;
     }
-    entry.used = true;
+    return pte.ppn;
+  }
 
-    VMKernel.pinLock.acquire();
-    while(VMKernel.pinCounter >= numPages) {
-      VMKernel.unpinnedPage.sleep();
-    }
+  protected int pinVirtualPage(int vpn, boolean isUserWrite) {
+    // pinning takes no lock unless every other frame is pinned; the page
+    // may be evicted while waiting, so fault it in again each time
+    while(true) {
+      if (!canPin(vpn, isUserWrite, true))
+        return -1;
+      TranslationEntry entry = pages.getEntry(vpn);
 
-    VMKernel.invTable[entry.ppn].pinned = true;
-    VMKernel.pinCounter++;
-    VMKernel.pinLock.release();
+      boolean intStatus = Machine.interrupt().disable();
+      boolean pinned = entry.valid && VMKernel.pinFrame(entry.ppn);
+      Machine.interrupt().restore(intStatus);
 
-    return entry.ppn;
+      if(pinned) {
+        notePinned(vpn, isUserWrite);
+        return entry.ppn;
+      }
+      if(entry.valid)
+        VMKernel.waitForUnpin();
+    }
   }
 
-  protected void unpinVirtualPage(int vpn) {
-    // input check
-    if (vpn < 0 || vpn >= pageTable.length)
-      return;
-    TranslationEntry entry = pageTable[vpn];
-    if (!entry.valid || entry.vpn != vpn)
-      return;
-
-    VMKernel.pinLock.acquire();
-    VMKernel.pinCounter--;
-    VMKernel.invTable[entry.ppn].pinned = false;
-    VMKernel.unpinnedPage.wake();
-    VMKernel.pinLock.release();
-  }
+  protected int pinVirtualRange(int vpn, int count, boolean isUserWrite,
+      int[] ppns) {
+    while(true) {
+      // faulting and breaking copy-on-write may sleep, so do that first.
+      // Only the first page is faulted in, as faulting in the rest could
+      // evict it again; the run ends at the next page that is not resident
+      if (!canPin(vpn, isUserWrite, true))
+        return 0;
+      int pinnable = 1;
+      while (pinnable < count && canPin(vpn+pinnable, isUserWrite, false))
+        pinnable++;
 
+      // then pin the whole run in one atomic section
+      boolean intStatus = Machine.interrupt().disable();
+      int pinned = 0;
+      while (pinned < pinnable) {
+        TranslationEntry entry = pages.getEntry(vpn+pinned);
+        if (!entry.valid || !VMKernel.pinFrame(entry.ppn))
+          break;
+        ppns[pinned++] = entry.ppn;
+      }
+      Machine.interrupt().restore(intStatus);
 
-  /**
-   * Chooses page to evict when no free pages. Returns ppn.
-   * FIFO but skips pages where used == true.
-   * Note: used is equivalent to recently used
-   */
-  private int clockReplacement() {
-    // FIFO but skip pages with used bit set
-    while(pageTable[VMKernel.invTable[clockVictim].vpn].used) {
-      pageTable[VMKernel.invTable[clockVictim].vpn].used = false;
-      clockVictim = (clockVictim + 1) % VMKernel.invTable.length;
+      if (pinned > 0) {
+        for (int i=0; i<pinned; i++)
+          notePinned(vpn+i, isUserWrite);
+        return pinned;
+      }
+      if (pages.getEntry(vpn).valid)
+        VMKernel.waitForUnpin();
     }
+  }
 
-    int result = clockVictim;
-    clockVictim = (clockVictim + 1) % VMKernel.invTable.length;    
-    return result;
+  protected void unpinVirtualRange(int vpn, int count, int[] ppns) {
+    VMKernel.unpinFrames(ppns, count);
   }
 
   /**
-   * Loops through TLB/page table to see if any entries 
-   * have mapping to specified ppn; invalidates them if so.
+   * Check that page vpn is resident and, for a user write, writable,
+   * breaking copy-on-write sharing if needed. If faultIn is set, a page
+   * that is not resident is brought in the same way as on a TLB miss.
    */
-  private void invalidateVictimPage(int ppn) {
-    for(int i = 0; i < Machine.processor().getTLBSize(); i++) {
-      TranslationEntry tlbe = new TranslationEntry(Machine.processor().readTLBEntry(i));
-      if(tlbe.ppn == ppn) {
-        tlbe.valid = false;
-        pageTable[tlbe.vpn].valid = false; // memory mapping no longer valid
+  private boolean canPin(int vpn, boolean isUserWrite, boolean faultIn) {
+    // input check
+    if (!isLegalPage(vpn))
+      return false;
+    TranslationEntry entry = pages.getEntry(vpn);
+    if (!entry.valid && faultIn)
+      faultIn(vpn);
+    if (!entry.valid || entry.vpn != vpn)
+      return false;
+
+    if (isUserWrite) {
+      if (isCopyOnWrite(vpn)) {
+        UserKernel.memoryLock.acquire();
+        boolean copied = !isCopyOnWrite(vpn) || copyOnWrite(vpn);
+        UserKernel.memoryLock.release();
+        if (!copied || !entry.valid)
+          return false;
       }
-      Machine.processor().writeTLBEntry(i, tlbe);
+      if (entry.readOnly)
+        return false;
     }
+    return true;
   }
 
   /**
-   * Reads specified swap page from file if not in freeSwapPages list.
-   * Puts swap page index back into freeSwapPages list if successful.
-   * Returns number of bytes read.
+   * Set the dirty and used bits of a page that has just been pinned.
    */
-  private int swapRead(int spn, int ppn) {
-    if(VMKernel.freeSwapPages.indexOf((Integer) spn) != -1)
-      return -1;
-
-    int result = VMKernel.swapFile.read(spn*pageSize, 
-      Machine.processor().getMemory(), ppn*pageSize, pageSize);
+  private void notePinned(int vpn, boolean isUserWrite) {
+    TranslationEntry entry = pages.getEntry(vpn);
+    if (isUserWrite)
+      entry.dirty = true;
+    entry.used = true;
+    notePrefetchHit(entry.ppn);
+  }
 
-    if(result != -1) {
-      VMKernel.freeSwapPages.add((Integer) spn);
-      VMKernel.swapLock.acquire();
-      VMKernel.swapFull.wake();
-      VMKernel.swapLock.release();
-    }
+  protected void unpinVirtualPage(int vpn) {
+    // input check
+    if (!isLegalPage(vpn))
+      return;
+    TranslationEntry entry = pages.getEntry(vpn);
+    if (!entry.valid || entry.vpn != vpn)
+      return;
 
-    return result;
+    VMKernel.unpinFrame(entry.ppn);
   }
-  
+
+
   /**
-   * Write specified ppn of current page table to swap file.
-   * Adds 
-   * Returns swap page number.
+   * Reads vpn from swap into frame ppn. Neighbouring vpns whose swap pages
+   * continue the same run are read by the same request and mapped into
+   * free frames, as long as that leaves the free list above the low
+   * watermark and the process within its maximum resident set. Frees the
+   * swap pages read.
+   * Returns false if the read fails.
    */
-  private int swapWrite(int ppn) {
-    VMKernel.swapLock.acquire();
-    // no free pages; wait for one to appear
-    while(VMKernel.freeSwapPages.isEmpty()) {
-      VMKernel.swapFull.sleep();  
+  private boolean swapIn(int vpn, int ppn) {
+    int spn = pages.getSwapPage(vpn);
+    if(!VMKernel.swapSpace.isAllocated(spn))
+      return false;
+
+    // grow the run in both directions while frames can be spared; vpn
+    // itself is not yet counted as resident
+    int first = vpn, last = vpn;
+    int spare = Math.min(
+      UserKernel.freePages.size() - VMKernel.freeLowWatermark,
+      VMKernel.maxResidentPages - residentPages - 1);
+    while(last - first + 1 < VMKernel.swapClusterPages && spare > 0) {
+      if(last + 1 < numPages && pages.getSwapPage(last+1) != -1 &&
+          pages.getSwapPage(last+1) == pages.getSwapPage(last) + 1)
+        last++;
+      else if(first > 0 && pages.getSwapPage(first-1) != -1 &&
+          pages.getSwapPage(first-1) == pages.getSwapPage(first) - 1)
+        first--;
+      else
+        break;
+      spare--;
+    }
+
+    int count = last - first + 1;
+    int firstSpn = pages.getSwapPage(first);
+    byte[] memory = Machine.processor().getMemory();
+
+    if(count == 1) {
+      if(VMKernel.swapSpace.read(spn, memory, ppn*pageSize) <= 0)
+        return false;
     }
-    VMKernel.swapLock.release();
+    else {
+      if(VMKernel.swapSpace.read(firstSpn, VMKernel.swapInBuffer, 0, count)
+          <= 0)
+        return false;
 
-    // write to free swap page
-    int spn = (int) VMKernel.freeSwapPages.remove();
-    int result = VMKernel.swapFile.write(spn*pageSize, 
-      Machine.processor().getMemory(), ppn*pageSize, pageSize);
-    
-    // update inverted page table entry if written successfully
-    if(result >= 0) {
-      VMKernel.vpnSwapMap.put(VMKernel.invTable[ppn].vpn, spn);
-      VMKernel.spnProcMap.put(spn, VMKernel.invTable[ppn].proc);
-      return spn;
+      for(int i = first; i <= last; i++) {
+        int frame = ppn;
+        if(i != vpn) {
+          frame = UserKernel.freePages.allocate();
+          mapFrame(i, frame, false);
+          markPrefetched(i, frame);
+        }
+        System.arraycopy(VMKernel.swapInBuffer, (i-first)*pageSize,
+          memory, frame*pageSize, pageSize);
+      }
     }
 
-    return result;
+    VMKernel.swapSpace.free(firstSpn, count);
+    for(int i = first; i <= last; i++)
+      pages.setSwapPage(i, -1);
+
+    return true;
   }
 
   /**
-   * Handle swap write and PTE invalidations for evicted page
-   * int vpn - VPN causing TLB miss
-   * int ppn - PPN where we want to allocate memory
+   * Removes the mapping of vpn to frame ppn, invalidating its page table
+   * entry and, if this process is running, its TLB entry. Called with the
+   * memory lock held.
+   * A dirty page of a mapped file is written back to the file here.
+   * Returns true if the page must be written to swap before the frame
+   * can be reused.
    */
-  private void handleEviction(int vpn, int ppn) {
-    int evictedVpn = VMKernel.invTable[ppn].vpn;  // previous vpn mapping to ppn
-    TranslationEntry invalidPte = pageTable[evictedVpn];  // pte to invalidate
-
-    // check if evictedVpn is part of coff section
-    int coffResult = insideCoff(evictedVpn);
-    boolean inCoff = (coffResult < 0) ? false : true;
+  boolean unmapFrame(int vpn, int ppn) {
+    TranslationEntry pte = pages.getEntry(vpn);
 
-    if(inCoff) {
-      boolean readOnly = (coffResult == 1) ? true : false;
+    // only the pages of the process last run can be in the TLB
+    if(VMKernel.tlbProcess == this)
+      invalidateTLBEntry(vpn);
+    pte.valid = false;
 
-      // non-readOnly pages in exe evicted if dirty
-      if(!readOnly && invalidPte.dirty) {
-        swapWrite(ppn);
-      }
+    if(vpn >= numPages) {
+      if(pte.dirty)
+        mapAt(vpn).writePage(vpn, ppn);
+      pte.dirty = false;
+      return false;
     }
 
-    // outside coff - write to swap if dirty
-    else {
-      if(invalidPte.dirty) {
-        swapWrite(ppn);
-      }
+    // a page mapped ahead of use is leaving unused; read less ahead
+    if(VMKernel.invTable[ppn].prefetched) {
+      VMKernel.invTable[ppn].prefetched = false;
+      VMKernel.prefetchMisses++;
+      prefetchWindow /= 2;
     }
 
-    // set TLB and PT entries to invalid where evicted page was used
-    invalidateVictimPage(ppn); // invalidates TLB entries where evicted page was
-    invalidPte.valid = false;
-    VMKernel.invTable[ppn].vpn = vpn;
-    VMKernel.invTable[ppn].proc = this;
+    // read-only exe pages are reloaded from coff; anything else
+    // goes to swap if dirty
+    return pte.dirty && insideCoff(vpn) != 1;
   }
 
   /**
-   * Allocate physical memory and set pageTable and invTable values
-   * for entry at vpn/ppn.
-   * Input ppn is the location in physical memory we want to evict
+   * Load vpn into the unused frame ppn and set page table and invTable
+   * values for entry at vpn/ppn.
    */
-  private void allocateFrame(int vpn, int ppn, boolean evict) {
-    TranslationEntry pte = pageTable[vpn];
+  private void allocateFrame(int vpn, int ppn) {
     boolean allocated = false;
     boolean readOnly = false;
 
-    // handle swap write and pte invalidations for evicted page
-    if(evict)
-      handleEviction(vpn, ppn); // ppn here is the new location where we are putting our pte
-    
-    // dirty - swap in from swap file; since dirty, can't be readOnly
-    if(pte.dirty && VMKernel.vpnSwapMap.containsKey((Integer) vpn)) {
-      Integer spn = VMKernel.vpnSwapMap.get((Integer) vpn);
-
-      // write in from swap page if spn valid and same process
-      if(VMKernel.spnProcMap.containsKey(spn) && 
-        VMKernel.spnProcMap.get(spn) == this) {
-        
-        // memory successfully allocated; if not, allocate as normal
-        if(swapRead(spn, ppn) > 0) {
-          VMKernel.vpnSwapMap.remove((Integer) vpn);
-          VMKernel.spnProcMap.remove((Integer) spn);
-          swapRead((int) spn, ppn);
-          allocated = true;
-        }
-      }
+    // pages of a mapped file come from the file
+    if(vpn >= numPages) {
+      mapAt(vpn).readPage(vpn, ppn);
+      allocated = true;
     }
 
-    // not found in swap or hashMaps - allocate from coff
+    // swapped out - swap in from swap file; since dirty, can't be readOnly
+    if(pages.getSwapPage(vpn) != -1 && swapIn(vpn, ppn))
+      allocated = true;
+
+    // bss, stack and argument pages start out as zeros
+    if(!allocated && isAnonymous(vpn)) {
+      Arrays.fill(Machine.processor().getMemory(), ppn*pageSize,
+        (ppn+1)*pageSize, (byte) 0);
+      VMKernel.zeroFilledPages++;
+      allocated = true;
+    }
+
+    // not found in swap - allocate from coff
     if(!allocated) {
       int coffResult = insideCoff(vpn);
       readOnly = (coffResult == 1) ? true : false;
 
-      // load page into memory when appropriate section found
-      for (int s=0; s<coff.getNumSections(); s++) {
-        CoffSection section = coff.getSection(s);
-        if(vpn >= section.getFirstVPN() && vpn < (section.getFirstVPN() + section.getLength())) {
-            section.loadPage(vpn - section.getFirstVPN(), ppn);
-        }
+      // load page into memory from the section that holds it
+      if(coffResult != -1) {
+        coff.getSection(coffPage[vpn] >> 16).loadPage(coffPage[vpn] & 0xFFFF,
+          ppn);
       }
     }
 
+    mapFrame(vpn, ppn, readOnly);
+
+    // later processes running this executable map the same frame
+    if(readOnly) {
+      text.frames[vpn] = ppn;
+      VMKernel.invTable[ppn].text = text;
+    }
+  }
+
+  /**
+   * Returns true if vpn is a bss, stack or argument page, which holds zeros
+   * until first written.
+   */
+  private boolean isAnonymous(int vpn) {
+    return vpn < numPages && kindOf(vpn) >= kindBss;
+  }
+
+  /**
+   * Returns what backs vpn, which must lie in the program's address space.
+   */
+  private byte kindOf(int vpn) {
+    if(vpn < pageKind.length)
+      return pageKind[vpn];
+    return (vpn == numPages-1) ? kindArgs : kindStack;
+  }
+
+  /**
+   * Maps vpn to the frame holding it if another process running the same
+   * executable has already loaded it. Called with the memory lock held.
+   * Returns false if the page is not shared or not in memory.
+   */
+  private boolean mapSharedText(int vpn) {
+    if(vpn >= numPages)
+      return false;
+
+    int ppn = text.frames[vpn];
+    if(ppn == -1)
+      return false;
+
+    TranslationEntry pte = pages.getEntry(vpn);
+    pte.ppn = ppn;
+    pte.valid = true;
+    pte.readOnly = true;
+    pte.used = true;
+    VMKernel.addSharer(ppn, this, vpn);
+    return true;
+  }
+
+  /**
+   * Sets page table and invTable values for a page just loaded into
+   * frame ppn.
+   */
+  private void mapFrame(int vpn, int ppn, boolean readOnly) {
+    TranslationEntry pte = pages.getEntry(vpn);
     pte.ppn = ppn;
     pte.valid = true;
     pte.readOnly = readOnly;
     VMKernel.invTable[ppn].vpn = vpn;
     VMKernel.invTable[ppn].proc = this;
-    // TODO: set invTable.pinned
+    VMKernel.mappedFrames++;
+    VMKernel.invTable[ppn].lastUsed = Machine.timer().getTime();
+    VMKernel.invTable[ppn].referenced = false;
+    VMKernel.addResidentPages(this, 1);
+    VMKernel.replacementPolicy.frameLoaded(ppn);
   }
 
 
@@ -305,39 +544,450 @@ public class VMProcess extends UserProcess {
    * Returns 1 if specified vpn in coffSection and readOnly
    */
   private int insideCoff(int vpn) {
-    boolean readOnly = false;
-    for (int s=0; s<coff.getNumSections(); s++) {
-      CoffSection section = coff.getSection(s);
+    if(vpn >= coffPage.length || coffPage[vpn] == -1)
+      return -1;
+    return (pageKind[vpn] == kindText) ? 1 : 0;
+  }
+
+
+  /**
+   * Brings vpn into memory, taking a free frame if there is one and
+   * evicting the frame chosen by the kernel's replacement policy otherwise.
+   * Called with the memory lock held.
+   * Returns false if no frame could be found because swap is full.
+   */
+  private boolean handlePageFault(int vpn) {
+    Lib.debug(dbgVM, "page fault on vpn " + vpn + " of process " + processID());
+    VMKernel.pageFaults++;
+    if(pages.getSwapPage(vpn) != -1)
+      VMKernel.swapFaults++;
 
-      // if vpn is in coff exit out of loop
-      if(vpn >= section.getFirstVPN() && vpn < (section.getFirstVPN() + section.getLength())) {
-          readOnly = section.isReadOnly();
-          return (readOnly) ? 1 : 0;
+    // a page still being written out must reach swap before it is read back
+    VMKernel.waitForPageOut(this, vpn);
+
+    if(mapSharedText(vpn))
+      return true;
+
+    VMKernel.sampleWorkingSet(this);
+    // the replacement policy reads used bits from page tables; the TLB may
+    // belong to another process, as when a parent writes a child's argv
+    if(UserKernel.freePages.isEmpty() && VMKernel.tlbProcess != null)
+      VMKernel.tlbProcess.syncEntries(false);
+
+    int ppn = VMKernel.getFrame(this);
+    if(ppn == -1)
+      return false;
+    allocateFrame(vpn, ppn);
+
+    prefetch(vpn);
+    return true;
+  }
+
+  /**
+   * Maps the pages following vpn ahead of use if faults are arriving in
+   * sequence. A fault is sequential if it continues the pages last read
+   * ahead, or if the page before it is resident, which catches several
+   * interleaved streams. Each sequential fault doubles the window, up to
+   * <tt>VMKernel.maxPrefetchPages</tt>; any other fault closes it, and
+   * each prefetched page evicted unused halves it. Only pages backed by
+   * swap or the executable are read ahead, and only while the free list
+   * stays above the low watermark and the process holds fewer than
+   * <tt>VMKernel.maxResidentPages</tt>. Called with the memory lock held.
+   */
+  private void prefetch(int vpn) {
+    if(vpn == nextSequentialVpn || (vpn > 0 && pages.isValid(vpn-1)))
+      prefetchWindow = Math.min(Math.max(1, prefetchWindow*2),
+        VMKernel.maxPrefetchPages);
+    else
+      prefetchWindow = 0;
+    nextSequentialVpn = vpn + 1;
+
+    for(int v = vpn + 1; v <= vpn + prefetchWindow && isLegalPage(v); v++) {
+      if(UserKernel.freePages.size() <= VMKernel.freeLowWatermark ||
+          residentPages >= VMKernel.maxResidentPages ||
+          VMKernel.isPagingOut(this, v))
+        break;
+
+      if(!pages.getEntry(v).valid && !mapSharedText(v)) {
+        // zero-filled pages cost no I/O, so there is nothing to gain
+        if(v >= numPages ? mapAt(v) == null :
+            pages.getSwapPage(v) == -1 && isAnonymous(v))
+          break;
+
+        int ppn = UserKernel.freePages.allocate();
+        allocateFrame(v, ppn);
+        markPrefetched(v, ppn);
       }
+      nextSequentialVpn = v + 1;
     }
-    return -1;
   }
 
+  /**
+   * Marks vpn, just loaded into frame ppn, as mapped ahead of use.
+   */
+  private void markPrefetched(int vpn, int ppn) {
+    pages.getEntry(vpn).used = false;
+    VMKernel.invTable[ppn].prefetched = true;
+    VMKernel.prefetchedPages++;
+  }
 
-  private void handlePageFault(int vpn) {
-    int ppn;
-    int spn;
-    TranslationEntry pte = pageTable[vpn];
+  /**
+   * Counts a read-ahead hit if frame ppn was mapped ahead of use and this
+   * is its first use.
+   */
+  private void notePrefetchHit(int ppn) {
+    if(VMKernel.invTable[ppn].prefetched) {
+      VMKernel.invTable[ppn].prefetched = false;
+      VMKernel.prefetchHits++;
+    }
+  }
+
+  /**
+   * Returns true if vpn is mapped read-only only because its frame is
+   * shared with a process created by <tt>fork()</tt>, or merged with an
+   * identical frame.
+   */
+  private boolean isCopyOnWrite(int vpn) {
+    TranslationEntry pte = pages.getEntry(vpn);
+    return pte.valid && pte.readOnly && insideCoff(vpn) != 1;
+  }
+
+  /**
+   * Gives this process a private, writable copy of vpn. If no other
+   * process maps the frame any longer, it is made writable in place.
+   * Called with the memory lock held, which is released while waiting for
+   * a frame to be unpinned.
+   * Returns false if no frame could be found because swap is full; the
+   * shared page is then still mapped read-only.
+   */
+  private boolean copyOnWrite(int vpn) {
+    TranslationEntry pte = pages.getEntry(vpn);
+    int oldPpn;
+    while(true) {
+      oldPpn = pte.ppn;
+      VMKernel.PhysicalPage page = VMKernel.invTable[oldPpn];
+
+      // the TLB entry still says read-only
+      invalidateTLBEntry(vpn);
 
-    // chooses ppn from free frames, allocates memory, updates table entries
-    if(!UserKernel.freePages.isEmpty()) {
-      ppn = ((Integer)UserKernel.freePages.removeFirst()).intValue();
-      allocateFrame(vpn, ppn, false); // allocate without evicting
+      if(page.proc == this && page.sharers.isEmpty()) {
+        pte.readOnly = false;
+        return true;
+      }
+
+      // pin the shared frame so finding a frame cannot evict it
+      boolean intStatus = Machine.interrupt().disable();
+      boolean pinned = VMKernel.pinFrame(oldPpn);
+      Machine.interrupt().restore(intStatus);
+      if(pinned)
+        break;
+
+      // every other frame is pinned, so there is nowhere to copy to yet
+      UserKernel.memoryLock.release();
+      VMKernel.waitForUnpin();
+      UserKernel.memoryLock.acquire();
+
+      // the page may have been evicted meanwhile; the access faults again
+      if(!isCopyOnWrite(vpn))
+        return true;
     }
 
-    // chooses ppn through eviction, allocate physical page
-    else {
-      syncEntries(false);
-      do {
-        ppn = clockReplacement();
-      } while (VMKernel.invTable[ppn].pinned); // skip this entry if pinned
-      allocateFrame(vpn, ppn, true); // allocate with eviction
+    int ppn = VMKernel.getFrame(this);
+    VMKernel.unpinFrame(oldPpn);
+    if(ppn == -1)
+      return false;
+
+    byte[] memory = Machine.processor().getMemory();
+    System.arraycopy(memory, oldPpn*pageSize, memory, ppn*pageSize, pageSize);
+
+    // the other processes may have let go of the frame while we waited
+    if(VMKernel.removeMapping(oldPpn, this, vpn))
+      UserKernel.freePages.free(oldPpn);
+    mapFrame(vpn, ppn, false);
+    pte.used = true;
+    pte.dirty = true;
+    VMKernel.copyOnWriteCopies++;
+    return true;
+  }
+
+  /**
+   * Invalidates the TLB entry for vpn, if there is one, after copying its
+   * used and dirty bits to the page table.
+   */
+  private void invalidateTLBEntry(int vpn) {
+    int slot = pages.getTLBSlot(vpn);
+    if(slot == -1)
+      return;
+
+    syncEntry(slot);
+    Machine.processor().writeTLBEntry(slot, invalidEntry);
+    pages.setTLBSlot(vpn, -1);
+  }
+
+  /**
+   * Handle the fork() system call. Creates a child running a copy of this
+   * process. Every resident page is shared with the child: writable pages
+   * become read-only in both processes and are copied by whichever writes
+   * first. Pages in swap are shared by reference, and pages never loaded
+   * are loaded by each process on demand. Mapped files, and their
+   * descriptors, are not inherited.
+   *
+   * @return the child's process ID, or -1 on error.
+   */
+  private int handleFork() {
+    VMProcess child = (VMProcess) newUserProcess();
+
+    // the child reads the executable through its own file, so that it can
+    // still load pages after this process exits
+    OpenFile executable = ThreadedKernel.fileSystem.open(executableName,
+      false);
+    if(executable == null)
+      return -1;
+    try {
+      child.coff = new Coff(executable);
+    }
+    catch(EOFException e) {
+      executable.close();
+      return -1;
+    }
+
+    // open files keep their positions; mapped files are left out along
+    // with their pages, since read() and write() through the descriptor
+    // would bypass the parent's mapping
+    for(int fd = 2; fd < maxFiles; fd++) {
+      if(fileTable[fd] == null || maps[fd] != null)
+        continue;
+
+      OpenFile file = ThreadedKernel.fileSystem.open(
+        fileTable[fd].getName(), false);
+      if(file == null) {
+        for(int i = 2; i < fd; i++) {
+          if(child.fileTable[i] != null)
+            child.fileTable[i].close();
+        }
+        child.coff.close();
+        return -1;
+      }
+      file.seek(fileTable[fd].tell());
+      child.fileTable[fd] = file;
+    }
+
+    // the child returns 0 from the syscall instruction
+    child.forkRegisters = new int[Processor.numUserRegisters];
+    for(int i = 0; i < Processor.numUserRegisters; i++)
+      child.forkRegisters[i] = Machine.processor().readRegister(i);
+    child.forkRegisters[Processor.regV0] = 0;
+    child.forkRegisters[Processor.regPC] =
+      child.forkRegisters[Processor.regNextPC];
+    child.forkRegisters[Processor.regNextPC] += 4;
+
+    UserKernel.memoryLock.acquire();
+
+    // pages still being written out get their swap pages first
+    VMKernel.waitForPageOut(this);
+    syncEntries(true); // the TLB may still allow writes
+
+    child.executableName = executableName;
+    child.numPages = numPages;
+    child.pageKind = pageKind;
+    child.coffPage = coffPage;
+    child.text = VMKernel.attachText(text.key, numPages);
+    child.pages = new PageTable();
+
+    // only pages this process has used have anything to share
+    for(int vpn = pages.nextEntry(0); vpn != -1 && vpn < numPages;
+        vpn = pages.nextEntry(vpn + 1)) {
+      TranslationEntry pte = pages.getEntry(vpn);
+      int spn = pages.getSwapPage(vpn);
+
+      if(pte.valid) {
+        TranslationEntry cpte = child.pages.getEntry(vpn);
+        pte.readOnly = true;
+        cpte.ppn = pte.ppn;
+        cpte.valid = true;
+        cpte.readOnly = true;
+        cpte.dirty = pte.dirty;
+        child.pages.setSwapPage(vpn, spn);
+        VMKernel.addSharer(pte.ppn, child, vpn);
+      }
+      else if(spn != -1) {
+        VMKernel.swapSpace.share(spn);
+        child.pages.getEntry(vpn).dirty = pte.dirty;
+        child.pages.setSwapPage(vpn, spn);
+      }
+    }
+
+    UserKernel.memoryLock.release();
+
+    UserKernel.processLock.acquire();
+    addChild(child);
+    child.startThread(executableName);
+    UserKernel.processLock.release();
+
+    return child.processID();
+  }
+
+  /**
+   * Handle the mmap() system call. Maps the open file fd at vaddr, which
+   * must be page aligned and must not overlap the program or another
+   * mapping. Pages are read from the file on first use.
+   *
+   * @return the length of the file, or -1 on error.
+   */
+  private int handleMmap(int fd, int vaddr) {
+    if(fd < 0 || fd >= maxFiles || fileTable[fd] == null || maps[fd] != null)
+      return -1;
+    if(vaddr < 0 || Processor.offsetFromAddress(vaddr) != 0)
+      return -1;
+
+    // the console has no length, and cannot be mapped
+    if(fileTable[fd].length() < 0)
+      return -1;
+
+    MappedFile map = new MappedFile(fileTable[fd],
+      Processor.pageFromAddress(vaddr));
+    int end = map.firstVPN + map.numPages;
+    if(map.firstVPN < numPages || end > maxVirtualPages)
+      return -1;
+    for(int i = 0; i < maxFiles; i++) {
+      if(maps[i] != null && map.firstVPN < maps[i].firstVPN + maps[i].numPages
+          && maps[i].firstVPN < end)
+        return -1;
+    }
+
+    // the page table fills in the mapping's pages as they are used
+    maps[fd] = map;
+
+    return map.length;
+  }
+
+  /**
+   * Removes the mapping of fd, writing its dirty pages back to the file.
+   */
+  private void unmap(int fd) {
+    MappedFile map = maps[fd];
+
+    UserKernel.memoryLock.acquire();
+    syncEntries(true); // pick up dirty bits still in the TLB
+
+    int[] frames = new int[residentPages];
+    int count = 0;
+
+    // pages of the mapping never touched have no entry, and nothing to write
+    int end = map.firstVPN + map.numPages;
+    for(int vpn = pages.nextEntry(map.firstVPN); vpn != -1 && vpn < end;
+        vpn = pages.nextEntry(vpn + 1)) {
+      VMKernel.waitForPageOut(this, vpn);
+
+      TranslationEntry pte = pages.getEntry(vpn);
+      if(pte.valid && pte.dirty)
+        map.writePage(vpn, pte.ppn);
+      pte.dirty = false;
+      int ppn = releasePage(vpn);
+      if(ppn != -1)
+        frames[count++] = ppn;
+    }
+    UserKernel.freePages.free(frames, count);
+    maps[fd] = null;
+
+    VMKernel.frameFreed.wakeAll();
+    UserKernel.memoryLock.release();
+  }
+
+  /**
+   * Returns the mapping covering vpn, or null if no file is mapped there.
+   */
+  private MappedFile mapAt(int vpn) {
+    for(int i = 0; i < maxFiles; i++) {
+      if(maps[i] != null && maps[i].contains(vpn))
+        return maps[i];
+    }
+    return null;
+  }
+
+  /**
+   * Unmaps every mapped file before the process exits, so that their
+   * dirty pages reach the files.
+   */
+  protected int handleExit(int status) {
+    for(int fd = 0; fd < maxFiles; fd++) {
+      if(maps[fd] != null)
+        unmap(fd);
     }
+    return super.handleExit(status);
+  }
+
+  /**
+   * Returns an empty set of saved TLB slots.
+   */
+  private static int[] initialTLB() {
+    int[] slots = new int[Machine.processor().getTLBSize()];
+    Arrays.fill(slots, -1);
+    return slots;
+  }
+
+  /**
+   * Returns true if evicting vpn would have to write it to swap: it is a
+   * dirty page of the program, not of a mapped file or the executable's
+   * text. The TLB's dirty bit is read without being changed. Called with
+   * the memory lock held.
+   */
+  boolean needsSwap(int vpn) {
+    if(vpn >= numPages || insideCoff(vpn) == 1)
+      return false;
+    if(pages.getEntry(vpn).dirty)
+      return true;
+
+    int slot = pages.getTLBSlot(vpn);
+    return slot != -1 && VMKernel.tlbProcess == this &&
+      Machine.processor().readTLBEntry(slot).dirty;
+  }
+
+  /**
+   * Returns true if vpn may share a frame with identical contents. Only
+   * pages that are copied on write qualify; executable text is already
+   * shared, and mapped file pages are written back to their files.
+   */
+  boolean isMergeable(int vpn) {
+    return vpn < numPages && insideCoff(vpn) != 1;
+  }
+
+  /**
+   * Maps vpn read-only to frame ppn, so that the next write to it is
+   * copied. The TLB entry is dropped so the change takes effect. Called
+   * with the memory lock held.
+   */
+  void shareFrame(int vpn, int ppn) {
+    invalidateTLBEntry(vpn);
+    TranslationEntry pte = pages.getEntry(vpn);
+    pte.ppn = ppn;
+    pte.readOnly = true;
+  }
+
+  /**
+   * Returns the page table entry for vpn. Used by the kernel to inspect
+   * pages that belong to this process.
+   */
+  TranslationEntry getEntry(int vpn) {
+    return pages.getEntry(vpn);
+  }
+
+  /**
+   * Return true if vpn lies in the program's address space or in a mapping.
+   */
+  private boolean isLegalPage(int vpn) {
+    return vpn >= 0 && (vpn < numPages || mapAt(vpn) != null);
+  }
+
+  /**
+   * Bring page vpn into memory. Check again once the lock is held, since
+   * another fault may have loaded the page.
+   */
+  private void faultIn(int vpn) {
+    UserKernel.memoryLock.acquire();
+    if(!pages.getEntry(vpn).valid)
+      handlePageFault(vpn);
+    UserKernel.memoryLock.release();
   }
 
   private void handleTLBMiss() {
@@ -347,12 +997,28 @@ public class VMProcess extends UserProcess {
     // get/allocate page table entry from virtual address
     int vaddr = Machine.processor().readRegister(Processor.regBadVAddr);
     int vpn = Processor.pageFromAddress(vaddr);
-    Lib.assertTrue(vpn >= 0 && vpn < numPages);
-    TranslationEntry pte = pageTable[vpn];
+    if(!isLegalPage(vpn)) {
+      super.handleException(Processor.exceptionAddressError);
+      return;
+    }
+    TranslationEntry pte = pages.getEntry(vpn);
 
-    // page fault; allocate memory and page table entry
+    // page fault; allocate memory and page table entry. Load control
+    // may suspend the process here first
     if(!pte.valid) {
-      handlePageFault(vpn);
+      UserKernel.memoryLock.acquire();
+      VMKernel.controlLoad(this);
+      boolean loaded = pte.valid || handlePageFault(vpn);
+      UserKernel.memoryLock.release();
+
+      // memory and swap are both full
+      if(!loaded) {
+        super.handleException(Processor.exceptionPageFault);
+        return;
+      }
+    }
+    else {
+      notePrefetchHit(pte.ppn);
     }
 
     // choose tlb entry
@@ -366,14 +1032,34 @@ public class VMProcess extends UserProcess {
     }
 
     // evict and sync TLB entry
+    VMKernel.tlbMisses++;
     if(tlbFull) {
-      teIndex = Lib.random(Machine.processor().getTLBSize());
-      syncEntries(false);
+      teIndex = VMKernel.tlbPolicy.selectVictim();
+      int victimVpn = syncEntry(teIndex);
+      if(victimVpn != -1)
+        pages.setTLBSlot(victimVpn, -1);
+      VMKernel.tlbEvictions++;
     }
 
-    // update TLB entry
-    TranslationEntry tlbe = new TranslationEntry(pte);
-    Machine.processor().writeTLBEntry(teIndex, tlbe);
+    // update TLB entry; the processor keeps its own copy
+    Machine.processor().writeTLBEntry(teIndex, pte);
+    pages.setTLBSlot(vpn, teIndex);
+    VMKernel.tlbPolicy.entryLoaded(teIndex);
+  }
+
+  /**
+   * Syncs the used and dirty bits of one TLB entry to the page table.
+   * Returns the vpn the entry maps, or -1 if it is invalid.
+   */
+  private int syncEntry(int slot) {
+    TranslationEntry tlbe = Machine.processor().readTLBEntry(slot);
+    if(!tlbe.valid)
+      return -1;
+
+    TranslationEntry pte = pages.getEntry(tlbe.vpn);
+    pte.used |= tlbe.used;
+    pte.dirty |= tlbe.dirty;
+    return tlbe.vpn;
   }
 
   /**
@@ -390,15 +1076,127 @@ public class VMProcess extends UserProcess {
       case Processor.exceptionTLBMiss:
         handleTLBMiss();
         break;
+      case Processor.exceptionReadOnly:
+        // a write to a page shared since fork(); retry once it is private
+        int vpn = Processor.pageFromAddress(
+          processor.readRegister(Processor.regBadVAddr));
+        if(vpn >= 0 && vpn < numPages && isCopyOnWrite(vpn)) {
+          UserKernel.memoryLock.acquire();
+          boolean copied = !isCopyOnWrite(vpn) || copyOnWrite(vpn);
+          UserKernel.memoryLock.release();
+          if(copied)
+            break;
+        }
+        super.handleException(cause);
+        break;
       default:
         super.handleException(cause);
         break;
     }
   }
 
-  private static final int pageSize = Processor.pageSize;
+  /**
+   * Handle a syscall exception, adding <tt>fork()</tt> to the syscalls
+   * handled by <tt>UserProcess</tt>:
+   *
+   * <table>
+   * <tr><td>syscall#</td><td>syscall prototype</td></tr>
+   * <tr><td>10</td><td><tt>int  mmap(int fd, char *address);</tt></td></tr>
+   * <tr><td>13</td><td><tt>int  fork();</tt></td></tr>
+   * </table>
+   *
+   * A mapped file cannot be read or written through its file descriptor
+   * until the descriptor is closed, which also unmaps it.
+   */
+  public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+    switch (syscall) {
+      case syscallMmap:
+        return handleMmap(a0, a1);
+      case syscallRead:
+      case syscallWrite:
+        if(a0 >= 0 && a0 < maxFiles && maps[a0] != null)
+          return -1;
+        return super.handleSyscall(syscall, a0, a1, a2, a3);
+      case syscallClose:
+        if(a0 >= 0 && a0 < maxFiles && maps[a0] != null)
+          unmap(a0);
+        return super.handleSyscall(syscall, a0, a1, a2, a3);
+      case syscallFork:
+        return handleFork();
+      default:
+        return super.handleSyscall(syscall, a0, a1, a2, a3);
+    }
+  }
+
+  /**
+   * Translation entry, swap page and TLB slot of each page used so far;
+   * takes the place of <tt>pageTable</tt>, which is left unused.
+   */
+  PageTable pages;
+
+  /** The executable this process was loaded from. */
+  private String executableName;
+  /** Registers to start from, for a process created by fork(). */
+  private int[] forkRegisters = null;
+
+  /**
+   * What backs each page of the executable, one of the kind constants;
+   * see <tt>kindOf()</tt> for the pages after it.
+   */
+  private byte[] pageKind;
+  private static final byte kindText = 0, kindData = 1, kindBss = 2,
+                kindStack = 3, kindArgs = 4;
+  /**
+   * Section index in the high 16 bits and page within the section in the
+   * low 16 bits for each page of the executable, or -1 for other pages.
+   */
+  private int[] coffPage;
+
+  /**
+   * The vpn held in each TLB slot when another process last took over the
+   * TLB, or -1 for an empty slot.
+   */
+  private int[] savedTLB = initialTLB();
+
+  /** Written to TLB slots to empty them; the processor copies it. */
+  private static final TranslationEntry invalidEntry = new TranslationEntry();
+
+  /** Files mapped by mmap(), indexed by file descriptor. */
+  private MappedFile[] maps = new MappedFile[maxFiles];
+  /** Mappings may not extend past this many pages of address space. */
+  private static final int maxVirtualPages =
+    (int) (0x80000000L / Processor.pageSize);
+  /** Read-only pages shared with other processes running it. */
+  private VMKernel.SharedText text;
+
+  /** Frames this process owns, and how many it used recently. */
+  int residentPages = 0;
+  int workingSetSize = 0;
+  /** When the working set was last sampled. */
+  long lastWorkingSetSample = -VMKernel.workingSetWindow;
+
+  /**
+   * Set while load control counts this process as running; cleared while
+   * it is suspended. Load control sets suspendRequested to have it suspend
+   * itself at its next fault.
+   */
+  boolean admitted = false;
+  boolean suspendRequested = false;
+  /** When this process last faulted. */
+  long lastPageFault = 0;
+
+  /** Pages to read ahead on the next sequential fault. */
+  private int prefetchWindow = 0;
+  /** The vpn whose fault would continue the current sequence. */
+  private int nextSequentialVpn = -1;
 
-  private static int clockVictim = 0;
+  private static final int syscallRead = 6,
+                syscallWrite = 7,
+                syscallClose = 8,
+                syscallMmap = 10,
+                syscallFork = 13;
+
+  private static final int pageSize = Processor.pageSize;
 
   private static final char dbgProcess = 'a';
 